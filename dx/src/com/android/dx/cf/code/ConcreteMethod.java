@@ -179,6 +179,15 @@ public final class ConcreteMethod implements Method {
         return method.getEffectiveDescriptor();
     }
 
+    /**
+     * Gets the source file of the class that this method is part of.
+     *
+     * @return {@code null-ok;} the source file, if known
+     */
+    public CstString getSourceFile() {
+        return sourceFile;
+    }
+
     /**
      * Gets whether the class that this method is part of is defined with
      * {@code ACC_SUPER}.
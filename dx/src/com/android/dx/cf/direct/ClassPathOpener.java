@@ -18,12 +18,15 @@ package com.android.dx.cf.direct;
 
 import com.android.dx.util.FileUtils;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.util.zip.ZipFile;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.ArrayList;
@@ -46,6 +49,12 @@ public class ClassPathOpener {
      * package.
      */
     private final boolean sort;
+    /**
+     * If true, archives are read front to back as a stream, and each entry
+     * is handed to the consumer as soon as it is read, in the order it is
+     * stored. Ignored when sorting, which needs all the entries up front.
+     */
+    private final boolean streaming;
 
     /**
      * Callback interface for {@code ClassOpener}.
@@ -92,8 +101,25 @@ public class ClassPathOpener {
      * @param consumer {@code non-null;} callback interface
      */
     public ClassPathOpener(String pathname, boolean sort, Consumer consumer) {
+        this(pathname, sort, false, consumer);
+    }
+
+    /**
+     * Constructs an instance.
+     *
+     * @param pathname {@code non-null;} path element to process
+     * @param sort if true, sort such that classes appear before their inner
+     * classes and "package-info" occurs before all other classes in that
+     * package.
+     * @param streaming if true and not sorting, read archives sequentially
+     * and hand over each entry as soon as it is read
+     * @param consumer {@code non-null;} callback interface
+     */
+    public ClassPathOpener(String pathname, boolean sort, boolean streaming,
+            Consumer consumer) {
         this.pathname = pathname;
         this.sort = sort;
+        this.streaming = streaming && !sort;
         this.consumer = consumer;
     }
 
@@ -128,7 +154,7 @@ public class ClassPathOpener {
             if (path.endsWith(".zip") ||
                     path.endsWith(".jar") ||
                     path.endsWith(".apk")) {
-                return processArchive(file);
+                return streaming ? processArchiveStream(file) : processArchive(file);
             }
 
             byte[] bytes = FileUtils.readFile(file);
@@ -228,24 +254,99 @@ public class ClassPathOpener {
 
             String path = one.getName();
             InputStream in = zip.getInputStream(one);
+            byte[] bytes = readFully(in, one.getSize(), buf, baos);
+            in.close();
+
+            any |= consumer.processFileBytes(path, one.getTime(), bytes);
+        }
+
+        zip.close();
+        return any;
+    }
+
+    /**
+     * Processes the contents of an archive by reading it sequentially,
+     * without going through its central directory.
+     *
+     * @param file {@code non-null;} archive file to process
+     * @return whether any processing actually happened
+     * @throws IOException on i/o problem
+     */
+    private boolean processArchiveStream(File file) throws IOException {
+        ZipInputStream zip = new ZipInputStream(
+                new BufferedInputStream(new FileInputStream(file), 65536));
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(40000);
+        byte[] buf = new byte[20000];
+        boolean any = false;
+
+        consumer.onProcessArchiveStart(file);
+
+        try {
+            for (ZipEntry one = zip.getNextEntry(); one != null;
+                    one = zip.getNextEntry()) {
+                if (one.isDirectory()) {
+                    continue;
+                }
 
-            baos.reset();
-            for (;;) {
-                int amt = in.read(buf);
+                byte[] bytes = readFully(zip, one.getSize(), buf, baos);
+                any |= consumer.processFileBytes(one.getName(), one.getTime(), bytes);
+            }
+        } finally {
+            zip.close();
+        }
+
+        return any;
+    }
+
+    /**
+     * Reads the rest of a stream. If its size is known, the data is read
+     * straight into an array of that size instead of being copied out of
+     * {@code baos}.
+     *
+     * @param in {@code non-null;} stream to read
+     * @param size expected number of bytes, or {@code -1} if unknown
+     * @param buf {@code non-null;} scratch buffer
+     * @param baos {@code non-null;} scratch output, reset before use
+     * @return {@code non-null;} the data read
+     * @throws IOException on i/o problem
+     */
+    private static byte[] readFully(InputStream in, long size, byte[] buf,
+            ByteArrayOutputStream baos) throws IOException {
+        baos.reset();
+
+        if (size > 0 && size <= Integer.MAX_VALUE) {
+            byte[] bytes = new byte[(int) size];
+            int at = 0;
+            while (at < bytes.length) {
+                int amt = in.read(bytes, at, bytes.length - at);
                 if (amt < 0) {
                     break;
                 }
+                at += amt;
+            }
 
-                baos.write(buf, 0, amt);
+            if (at == bytes.length) {
+                int next = in.read();
+                if (next < 0) {
+                    return bytes;
+                }
+                // larger than declared; fall back to accumulating
+                baos.write(bytes, 0, at);
+                baos.write(next);
+            } else {
+                baos.write(bytes, 0, at);
             }
+        }
 
-            in.close();
+        for (;;) {
+            int amt = in.read(buf);
+            if (amt < 0) {
+                break;
+            }
 
-            byte[] bytes = baos.toByteArray();
-            any |= consumer.processFileBytes(path, one.getTime(), bytes);
+            baos.write(buf, 0, amt);
         }
 
-        zip.close();
-        return any;
+        return baos.toByteArray();
     }
 }
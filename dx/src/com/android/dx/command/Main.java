@@ -27,13 +27,15 @@ public class Main {
         "usage:\n" +
         "  dx --dex [--debug] [--verbose] [--positions=<style>] " +
         "[--no-locals]\n" +
-        "  [--no-optimize] [--statistics] [--[no-]optimize-list=<file>] " +
-        "[--no-strict]\n" +
+        "  [--no-optimize] [--no-optimize-trivial] [--statistics]\n" +
+        "  [--[no-]optimize-list=<file>] [--no-strict]\n" +
         "  [--keep-classes] [--output=<file>] [--dump-to=<file>] " +
         "[--dump-width=<n>]\n" +
         "  [--dump-method=<name>[*]] [--verbose-dump] [--no-files] " +
         "[--core-library]\n" +
-        "  [--num-threads=<n>]\n" +
+        "  [--num-threads=<n>] [--class-cache=<directory>] " +
+        "[--class-cache-size=<MiB>]\n" +
+        "  [--method-cache=<n>] [--metrics=<file>.json]\n" +
         "  [<file>.class | <file>.{zip,jar,apk} | <directory>] ...\n" +
         "    Convert a set of classfiles into a dex file, optionally " +
         "embedded in a\n" +
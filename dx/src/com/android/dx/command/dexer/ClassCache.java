@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.command.dexer;
+
+import com.android.dx.Version;
+import com.android.dx.dex.DexOptions;
+import com.android.dx.dex.cf.CfOptions;
+import com.android.dx.util.FileUtils;
+import com.android.dx.util.Hex;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of translated classes, used by {@code --class-cache}.
+ * Each class is kept as a dex file containing only that class, named
+ * after the SHA-1 of the class file and of every option that affects
+ * its translation.
+ *
+ * <p>{@link #trim} bounds the size of the directory by deleting the
+ * entries that the current run did not use, oldest first, and then, if
+ * need be, the least recently used ones. An entry's modification time is
+ * its last access time.</p>
+ */
+final class ClassCache {
+    /** default upper bound of the size of the cache directory (64 MiB) */
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+
+    /** {@code non-null;} directory holding the cached dex files */
+    private final File dir;
+
+    /** {@code > 0;} upper bound of the size of the cache directory */
+    private final long maxSize;
+
+    /** {@code non-null;} keys of the entries read or written by this run */
+    private final Set<String> used =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /** {@code non-null;} digest of the options, prepended to every key */
+    private final byte[] optionsDigest;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param dir {@code non-null;} the cache directory; created if needed
+     * @param cfOptions {@code non-null;} options used to translate classes
+     * @param dexOptions {@code non-null;} options used to write dex files
+     * @param maxSize {@code > 0;} upper bound of the size of the cache
+     * directory
+     */
+    public ClassCache(File dir, CfOptions cfOptions, DexOptions dexOptions,
+            long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new RuntimeException("cannot create class cache directory "
+                    + dir);
+        }
+
+        this.dir = dir;
+        this.maxSize = maxSize;
+
+        String options = Version.VERSION
+                + ";api=" + dexOptions.targetApiLevel
+                + ";positions=" + cfOptions.positionInfo
+                + ";locals=" + cfOptions.localInfo
+                + ";optimize=" + cfOptions.optimize
+                + ";optimizeTrivial=" + cfOptions.optimizeTrivial
+                + ";optimizeList=" + cfOptions.optimizeListFile
+                + ";dontOptimizeList=" + cfOptions.dontOptimizeListFile;
+        MessageDigest md = newDigest();
+        md.update(utf8(options));
+        // The lists decide which methods are optimized, so their contents count.
+        updateWithFile(md, cfOptions.optimizeListFile);
+        updateWithFile(md, cfOptions.dontOptimizeListFile);
+        this.optionsDigest = md.digest();
+    }
+
+    /**
+     * Computes the cache key of a class.
+     *
+     * @param name {@code non-null;} the class file name
+     * @param bytes {@code non-null;} the class file contents
+     * @return {@code non-null;} the key
+     */
+    public String key(String name, byte[] bytes) {
+        MessageDigest md = newDigest();
+        md.update(optionsDigest);
+        md.update(utf8(name));
+        md.update((byte) 0);
+        md.update(bytes);
+
+        StringBuilder sb = new StringBuilder(40);
+        for (byte b : md.digest()) {
+            sb.append(Hex.u1(b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets the cached dex file for a key.
+     *
+     * @param key {@code non-null;} the key
+     * @return {@code null-ok;} the dex file, or {@code null} if the class
+     * is not in the cache
+     */
+    public byte[] get(String key) {
+        File file = new File(dir, key + ".dex");
+        if (!file.isFile()) {
+            return null;
+        }
+        byte[] dex = FileUtils.readFile(file);
+        used.add(key);
+        /*
+         * If the time can't be set, the entry is still kept by this run's
+         * trim() through used; only later runs see it as older.
+         */
+        file.setLastModified(System.currentTimeMillis());
+        return dex;
+    }
+
+    /**
+     * Stores the dex file for a key. The file is written under a temporary
+     * name first, so that concurrent or interrupted builds never observe a
+     * partial entry.
+     *
+     * @param key {@code non-null;} the key
+     * @param dex {@code non-null;} the dex file containing the class
+     */
+    public void put(String key, byte[] dex) throws IOException {
+        File file = new File(dir, key + ".dex");
+        File temp = File.createTempFile(key, ".tmp", dir);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(dex);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !file.isFile()) {
+            temp.delete();
+            throw new IOException("cannot rename " + temp + " to " + file);
+        }
+        temp.delete();
+        used.add(key);
+    }
+
+    /**
+     * Deletes entries until the cache directory is no larger than its
+     * bound. Entries that this run didn't use go first, then the least
+     * recently used ones.
+     */
+    public void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        final HashMap<File, Long> times = new HashMap<File, Long>();
+        for (File file : files) {
+            total += file.length();
+            times.put(file, file.lastModified());
+        }
+        if (total <= maxSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                boolean aUsed = isUsed(a);
+                boolean bUsed = isUsed(b);
+                if (aUsed != bUsed) {
+                    return aUsed ? 1 : -1;
+                }
+                long aTime = times.get(a);
+                long bTime = times.get(b);
+                return (aTime < bTime) ? -1 : ((aTime == bTime) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (total <= maxSize) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a file of the cache directory is an entry used by
+     * this run.
+     */
+    private boolean isUsed(File file) {
+        String name = file.getName();
+        return name.endsWith(".dex")
+                && used.contains(name.substring(0, name.length() - 4));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Adds the contents of a file to a digest.
+     *
+     * @param md {@code non-null;} the digest
+     * @param fileName {@code null-ok;} the file name, or {@code null} if
+     * there is no file
+     */
+    private static void updateWithFile(MessageDigest md, String fileName) {
+        if (fileName == null) {
+            return;
+        }
+        byte[] contents = FileUtils.readFile(fileName);
+        md.update(utf8(";" + contents.length + ";"));
+        md.update(contents);
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+}
@@ -27,6 +27,7 @@ import com.android.dx.dex.DexOptions;
 import com.android.dx.dex.cf.CfOptions;
 import com.android.dx.dex.cf.CfTranslator;
 import com.android.dx.dex.cf.CodeStatistics;
+import com.android.dx.dex.cf.MethodCache;
 import com.android.dx.dex.code.PositionList;
 import com.android.dx.dex.file.ClassDefItem;
 import com.android.dx.dex.file.DexFile;
@@ -40,6 +41,7 @@ import com.android.dx.rop.annotation.AnnotationsList;
 import com.android.dx.rop.cst.CstNat;
 import com.android.dx.rop.cst.CstString;
 import com.android.dx.util.FileUtils;
+import com.android.dx.util.Metrics;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -47,14 +49,17 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.jar.Attributes;
 import java.util.jar.JarEntry;
@@ -147,9 +152,59 @@ public class Main {
     /** Library .dex files to merge into the output .dex. */
     private static final List<byte[]> libraryDexBuffers = new ArrayList<byte[]>();
 
+    /** {@code null-ok;} cache of translated classes, if enabled */
+    private static ClassCache classCache;
+
+    /**
+     * {@code null-ok;} cache of translated methods, if enabled; kept
+     * across runs by tools that keep dx loaded
+     */
+    private static MethodCache methodCache;
+
+    /**
+     * {@code non-null;} single-class .dex files from {@link #classCache},
+     * keyed by class file name, to merge into the output .dex
+     */
+    private static final TreeMap<String, byte[]> classCacheDexBuffers =
+        new TreeMap<String, byte[]>();
+
     /** thread pool object used for multi-threaded file processing */
     private static ExecutorService threadPool;
 
+    /**
+     * maximum number of bytes read ahead of the worker threads, in
+     * multi-threaded mode
+     */
+    private static final int MAX_READ_AHEAD_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * {@code null-ok;} permits for bytes read but not yet processed by the
+     * worker threads, in multi-threaded mode; reading blocks when they run
+     * out, so that memory use doesn't grow with the size of the inputs
+     */
+    private static Semaphore readAhead;
+
+    /**
+     * {@code non-null;} per-thread lists of translated classes, filled in
+     * by the worker threads in multi-threaded mode and added to
+     * {@link #outputDex} once all the files are processed
+     */
+    private static final List<List<ClassDefItem>> stagedClassLists =
+        new ArrayList<List<ClassDefItem>>();
+
+    /** the list of {@link #stagedClassLists} owned by the current thread */
+    private static final ThreadLocal<List<ClassDefItem>> stagedClasses =
+        new ThreadLocal<List<ClassDefItem>>() {
+            @Override
+            protected List<ClassDefItem> initialValue() {
+                List<ClassDefItem> list = new ArrayList<ClassDefItem>();
+                synchronized (stagedClassLists) {
+                    stagedClassLists.add(list);
+                }
+                return list;
+            }
+        };
+
     /** true if any files are successfully processed */
     private static boolean anyFilesProcessed;
 
@@ -189,10 +244,62 @@ public class Main {
         // empty the list, so that  tools that load dx and keep it around
         // for multiple runs don't reuse older buffers.
         libraryDexBuffers.clear();
+        stagedClassLists.clear();
+        classCacheDexBuffers.clear();
 
         args = arguments;
         args.makeOptionsObjects();
 
+        if (args.metricsFile == null && !args.statistics) {
+            return run0();
+        }
+
+        Metrics.reset();
+        Metrics.setEnabled(true);
+        int result;
+        try {
+            result = run0();
+        } finally {
+            Metrics.setEnabled(false);
+        }
+
+        if (args.statistics) {
+            Metrics.dumpStatistics(DxConsole.out);
+        }
+
+        if (args.metricsFile != null) {
+            PrintStream out = new PrintStream(
+                    new FileOutputStream(args.metricsFile), false, "UTF-8");
+            try {
+                Metrics.dumpJson(out);
+            } finally {
+                out.close();
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs the conversion with the arguments in {@link #args}.
+     *
+     * @return 0 if success > 0 otherwise.
+     */
+    private static int run0() throws IOException {
+        classCache = null;
+        if (args.classCacheDir != null) {
+            classCache = new ClassCache(new File(args.classCacheDir),
+                    args.cfOptions, args.dexOptions, args.classCacheMaxSize);
+        }
+
+        if (args.methodCacheSize <= 0) {
+            methodCache = null;
+        } else if (methodCache == null
+                || methodCache.getMaxSize() != args.methodCacheSize) {
+            methodCache = new MethodCache(args.methodCacheSize);
+        }
+        args.cfOptions.methodCache = methodCache;
+
         File incrementalOutFile = null;
         if (args.incremental) {
             if (args.outName == null) {
@@ -218,6 +325,11 @@ public class Main {
         byte[] outArray = null;
 
         if (!outputDex.isEmpty()) {
+            if (canStreamOutput()) {
+                // write the .dex straight to its file, without a byte[] copy
+                return streamDex() ? 0 : 2;
+            }
+
             outArray = writeDex();
 
             if (outArray == null) {
@@ -225,11 +337,18 @@ public class Main {
             }
         }
 
+        Metrics.Timer mergeTimer = Metrics.start("merge");
+        outArray = mergeClassCacheDexBuffers(outArray);
+        if (classCache != null) {
+            classCache.trim();
+        }
+
         if (args.incremental) {
             outArray = mergeIncremental(outArray, incrementalOutFile);
         }
 
         outArray = mergeLibraryDexBuffers(outArray);
+        mergeTimer.end();
 
         if (args.jarOutput) {
             // Effectively free up the (often massive) DexFile memory.
@@ -276,7 +395,9 @@ public class Main {
         } else if (dexB == null) {
             result = dexA;
         } else {
-            result = new DexMerger(dexA, dexB, CollisionPolicy.KEEP_FIRST).merge();
+            DexMerger dexMerger = new DexMerger(dexA, dexB, CollisionPolicy.KEEP_FIRST);
+            dexMerger.setNumThreads(args.numThreads);
+            result = dexMerger.merge();
         }
 
         ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
@@ -289,19 +410,60 @@ public class Main {
      * same type, this fails with an exception.
      */
     private static byte[] mergeLibraryDexBuffers(byte[] outArray) throws IOException {
-        for (byte[] libraryDexBuffer : libraryDexBuffers) {
-            if (outArray == null) {
-                outArray = libraryDexBuffer;
-                continue;
-            }
+        List<byte[]> all = new ArrayList<byte[]>(libraryDexBuffers.size() + 1);
+        if (outArray != null) {
+            all.add(outArray);
+        }
+        all.addAll(libraryDexBuffers);
+        return mergeDexBuffers(all, args.numThreads, false);
+    }
 
-            DexBuffer a = new DexBuffer(outArray);
-            DexBuffer b = new DexBuffer(libraryDexBuffer);
-            DexBuffer ab = new DexMerger(a, b, CollisionPolicy.FAIL).merge();
-            outArray = ab.getBytes();
+    /**
+     * Merges the single-class dex files obtained from the class cache. The
+     * merger sizes its output for the worst case, which for many small
+     * inputs is about twice the real size, so the result is always
+     * compacted.
+     */
+    private static byte[] mergeClassCacheDexBuffers(byte[] outArray)
+            throws IOException {
+        List<byte[]> all = new ArrayList<byte[]>(classCacheDexBuffers.size() + 1);
+        if (outArray != null) {
+            all.add(outArray);
         }
+        all.addAll(classCacheDexBuffers.values());
+        classCacheDexBuffers.clear();
+        return mergeDexBuffers(all, 1, true);
+    }
 
-        return outArray;
+    /**
+     * Merges dex files in a single pass. If multiple dex files define the
+     * same type, this fails with an exception.
+     *
+     * @param dexBuffers {@code non-null;} the dex files to merge
+     * @param numThreads number of threads to merge with
+     * @param compact whether to compact the result however few bytes that
+     * saves
+     * @return {@code null-ok;} the merged dex file, or {@code null} if there
+     * are no dex files
+     */
+    private static byte[] mergeDexBuffers(List<byte[]> dexBuffers, int numThreads,
+            boolean compact) throws IOException {
+        if (dexBuffers.isEmpty()) {
+            return null;
+        } else if (dexBuffers.size() == 1) {
+            return dexBuffers.get(0);
+        }
+
+        DexBuffer[] dexes = new DexBuffer[dexBuffers.size()];
+        for (int i = 0; i < dexes.length; i++) {
+            dexes[i] = new DexBuffer(dexBuffers.get(i));
+        }
+        DexMerger dexMerger = new DexMerger(dexes, CollisionPolicy.FAIL);
+        dexMerger.setNumThreads(numThreads);
+        if (compact) {
+            dexMerger.setCompactWasteThreshold(0);
+        }
+        return dexMerger.merge().getBytes();
     }
 
     /**
@@ -326,6 +488,7 @@ public class Main {
 
         if (args.numThreads > 1) {
             threadPool = Executors.newFixedThreadPool(args.numThreads);
+            readAhead = new Semaphore(MAX_READ_AHEAD_BYTES);
         }
 
         try {
@@ -348,6 +511,7 @@ public class Main {
             } catch (InterruptedException ex) {
                 throw new RuntimeException("Timed out waiting for threads.");
             }
+            addStagedClasses();
         }
 
         if (warnings != 0) {
@@ -388,10 +552,16 @@ public class Main {
     private static boolean processOne(String pathname) {
         ClassPathOpener opener;
 
-        opener = new ClassPathOpener(pathname, false,
+        /*
+         * In multi-threaded mode the order of the files doesn't matter, so
+         * archives are streamed: the worker threads get each file as soon as
+         * it is read, while this thread reads the next ones.
+         */
+        opener = new ClassPathOpener(pathname, false, args.numThreads > 1,
                 new ClassPathOpener.Consumer() {
             public boolean processFileBytes(String name, long lastModified, byte[] bytes) {
                 if (args.numThreads > 1) {
+                    readAhead.acquireUninterruptibly(readAheadPermits(bytes));
                     threadPool.execute(new ParallelProcessor(name, lastModified, bytes));
                     return false;
                 } else {
@@ -422,6 +592,16 @@ public class Main {
         return opener.process();
     }
 
+    /**
+     * Gets the number of {@link #readAhead} permits a file holds while it
+     * waits for a worker thread.
+     *
+     * @param bytes {@code non-null;} contents of the file
+     */
+    private static int readAheadPermits(byte[] bytes) {
+        return Math.min(bytes.length, MAX_READ_AHEAD_BYTES);
+    }
+
     /**
      * Processes one file, which may be either a class or a resource.
      *
@@ -484,9 +664,17 @@ public class Main {
         }
 
         try {
+            if (classCache != null) {
+                processCachedClass(name, bytes);
+                return true;
+            }
+
             ClassDefItem clazz =
-                CfTranslator.translate(name, bytes, args.cfOptions, args.dexOptions);
-            synchronized (outputDex) {
+                CfTranslator.translate(name, bytes, args.cfOptions,
+                        args.dexOptions, methodExecutor());
+            if (args.numThreads > 1) {
+                stagedClasses.get().add(clazz);
+            } else {
                 outputDex.add(clazz);
             }
             return true;
@@ -503,6 +691,77 @@ public class Main {
         return false;
     }
 
+    /**
+     * Gets the executor that {@link CfTranslator} translates the methods
+     * of a class with. The methods of a class are only handed to the worker
+     * pool if there is one; a worker translating a class then lets idle
+     * workers take its methods, which keeps all of them busy when a few
+     * large classes are left at the end.
+     *
+     * @return {@code null-ok;} the worker pool, or {@code null} if classes
+     * are translated on the calling thread
+     */
+    private static Executor methodExecutor() {
+        return (args.numThreads > 1) ? threadPool : null;
+    }
+
+    /**
+     * Processes one classfile through the class cache: the class is
+     * translated into a dex file of its own unless an up-to-date one is
+     * already cached, and that file is queued for merging into the output.
+     *
+     * @param name {@code non-null;} name of the file
+     * @param bytes {@code non-null;} contents of the file
+     */
+    private static void processCachedClass(String name, byte[] bytes) {
+        String key = classCache.key(name, bytes);
+        byte[] dex = classCache.get(key);
+
+        if (dex == null) {
+            ClassDefItem clazz =
+                CfTranslator.translate(name, bytes, args.cfOptions,
+                        args.dexOptions, methodExecutor());
+            DexFile single = new DexFile(args.dexOptions);
+            single.add(clazz);
+            try {
+                dex = single.toDex(null, false);
+                classCache.put(key, dex);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+
+        synchronized (classCacheDexBuffers) {
+            if (classCacheDexBuffers.containsKey(name)) {
+                throw new IllegalArgumentException("already added: " + name);
+            }
+            classCacheDexBuffers.put(name, dex);
+        }
+    }
+
+    /**
+     * Adds the classes translated by the worker threads to
+     * {@link #outputDex}. The class definitions are ordered by type
+     * there, so the output doesn't depend on which thread translated
+     * which class.
+     */
+    private static void addStagedClasses() {
+        synchronized (stagedClassLists) {
+            for (List<ClassDefItem> list : stagedClassLists) {
+                for (ClassDefItem clazz : list) {
+                    try {
+                        outputDex.add(clazz);
+                    } catch (IllegalArgumentException ex) {
+                        DxConsole.err.println("\nUNEXPECTED TOP-LEVEL EXCEPTION:");
+                        ex.printStackTrace(DxConsole.err);
+                        errors++;
+                    }
+                }
+            }
+            stagedClassLists.clear();
+        }
+    }
+
     /**
      * Check the class name to make sure it's not a "core library"
      * class. If there is a problem, this updates the error count and
@@ -601,6 +860,53 @@ public class Main {
         return outArray;
     }
 
+    /**
+     * Returns whether {@link #outputDex} is the only thing to write out,
+     * as a plain {@code .dex} file with no dump, so that it can be streamed
+     * to the output file instead of being converted into a {@code byte[]}.
+     */
+    private static boolean canStreamOutput() {
+        return !args.jarOutput
+                && !args.incremental
+                && classCache == null
+                && libraryDexBuffers.isEmpty()
+                && args.outName != null
+                && !args.outName.equals("-")
+                && args.humanOutName == null
+                && args.methodToDump == null;
+    }
+
+    /**
+     * Streams {@link #outputDex} to the output file.
+     *
+     * @return whether the file was written successfully
+     */
+    private static boolean streamDex() {
+        try {
+            FileOutputStream out = new FileOutputStream(args.outName);
+            try {
+                outputDex.writeTo(out.getChannel());
+            } finally {
+                out.close();
+            }
+
+            if (args.statistics) {
+                DxConsole.out.println(outputDex.getStatistics().toHuman());
+            }
+        } catch (Exception ex) {
+            if (args.debug) {
+                DxConsole.err.println("\ntrouble writing output:");
+                ex.printStackTrace(DxConsole.err);
+            } else {
+                DxConsole.err.println("\ntrouble writing output: " +
+                                   ex.getMessage());
+            }
+            return false;
+        }
+
+        return true;
+    }
+
     /**
      * Creates a jar file from the resources and given dex file array.
      *
@@ -934,12 +1240,30 @@ public class Main {
         /** whether to merge with the output dex file if it exists. */
         public boolean incremental = false;
 
+        /**
+         * {@code null-ok;} directory in which translated classes are cached
+         * between runs, or {@code null} to translate every class
+         */
+        public String classCacheDir = null;
+
+        /** {@code > 0;} upper bound of the size of the class cache directory */
+        public long classCacheMaxSize = ClassCache.DEFAULT_MAX_SIZE;
+
+        /**
+         * {@code null-ok;} file to write translation metrics to as JSON,
+         * or {@code null} not to write them
+         */
+        public String metricsFile = null;
+
         /** {@code non-null} after {@link #parse}; file name arguments */
         public String[] fileNames;
 
         /** whether to do SSA/register optimization */
         public boolean optimize = true;
 
+        /** whether to optimize trivial methods too */
+        public boolean optimizeTrivial = true;
+
         /** Filename containg list of methods to optimize */
         public String optimizeListFile = null;
 
@@ -958,6 +1282,12 @@ public class Main {
         /** number of threads to run with */
         public int numThreads = 1;
 
+        /**
+         * maximum number of translated methods to cache for reuse, or
+         * {@code 0} not to cache any
+         */
+        public int methodCacheSize = 0;
+
         private static class ArgumentsParser {
 
             /** The arguments to process. */
@@ -1078,6 +1408,8 @@ public class Main {
                     emptyOk = true;
                 } else if (parser.isArg("--no-optimize")) {
                     optimize = false;
+                } else if (parser.isArg("--no-optimize-trivial")) {
+                    optimizeTrivial = false;
                 } else if (parser.isArg("--no-strict")) {
                     strictNameCheck = false;
                 } else if (parser.isArg("--core-library")) {
@@ -1138,8 +1470,17 @@ public class Main {
                     localInfo = false;
                 } else if (parser.isArg("--num-threads=")) {
                     numThreads = Integer.parseInt(parser.getLastValue());
+                } else if (parser.isArg("--method-cache=")) {
+                    methodCacheSize = Integer.parseInt(parser.getLastValue());
                 } else if (parser.isArg("--incremental")) {
                     incremental = true;
+                } else if (parser.isArg("--class-cache=")) {
+                    classCacheDir = parser.getLastValue();
+                } else if (parser.isArg("--class-cache-size=")) {
+                    classCacheMaxSize =
+                        Long.parseLong(parser.getLastValue()) * 1024 * 1024;
+                } else if (parser.isArg("--metrics=")) {
+                    metricsFile = parser.getLastValue();
                 } else {
                     System.err.println("unknown option: " + parser.getCurrent());
                     throw new UsageException();
@@ -1173,6 +1514,7 @@ public class Main {
             cfOptions.localInfo = localInfo;
             cfOptions.strictNameCheck = strictNameCheck;
             cfOptions.optimize = optimize;
+            cfOptions.optimizeTrivial = optimizeTrivial;
             cfOptions.optimizeListFile = optimizeListFile;
             cfOptions.dontOptimizeListFile = dontOptimizeListFile;
             cfOptions.statistics = statistics;
@@ -1208,8 +1550,12 @@ public class Main {
          * with the given path and bytes.
          */
         public void run() {
-            if (Main.processFileBytes(path, lastModified, bytes)) {
-                anyFilesProcessed = true;
+            try {
+                if (Main.processFileBytes(path, lastModified, bytes)) {
+                    anyFilesProcessed = true;
+                }
+            } finally {
+                readAhead.release(readAheadPermits(bytes));
             }
         }
     }
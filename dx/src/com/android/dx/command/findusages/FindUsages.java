@@ -24,18 +24,18 @@ import com.android.dx.io.FieldId;
 import com.android.dx.io.MethodId;
 import com.android.dx.io.OpcodeInfo;
 import com.android.dx.io.instructions.DecodedInstruction;
+import com.android.dx.util.BitIntSet;
+import com.android.dx.util.IntIterator;
+import com.android.dx.util.IntSet;
 import java.io.PrintStream;
 import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 public final class FindUsages {
     private final DexBuffer dex;
-    private final Set<Integer> methodIds;
-    private final Set<Integer> fieldIds;
+    private final IntSet methodIds;
+    private final IntSet fieldIds;
     private final CodeReader codeReader = new CodeReader();
     private final PrintWriter out;
 
@@ -46,11 +46,11 @@ public final class FindUsages {
         this.dex = dex;
         this.out = out;
 
-        Set<Integer> typeStringIndexes = new HashSet<Integer>();
-        Set<Integer> memberNameIndexes = new HashSet<Integer>();
+        List<String> strings = dex.strings();
+        IntSet typeStringIndexes = new BitIntSet(strings.size());
+        IntSet memberNameIndexes = new BitIntSet(strings.size());
         Pattern declaredByPattern = Pattern.compile(declaredBy);
         Pattern memberNamePattern = Pattern.compile(memberName);
-        List<String> strings = dex.strings();
         for (int i = 0; i < strings.size(); ++i) {
             String string = strings.get(i);
             if (declaredByPattern.matcher(string).matches()) {
@@ -60,27 +60,27 @@ public final class FindUsages {
                 memberNameIndexes.add(i);
             }
         }
-        if (typeStringIndexes.isEmpty() || memberNameIndexes.isEmpty()) {
+        if (typeStringIndexes.elements() == 0 || memberNameIndexes.elements() == 0) {
             methodIds = fieldIds = null;
             return; // these symbols are not mentioned in this dex
         }
 
-        methodIds = new HashSet<Integer>();
-        fieldIds = new HashSet<Integer>();
-        for (int typeStringIndex : typeStringIndexes) {
-            int typeIndex = Collections.binarySearch(dex.typeIds(), typeStringIndex);
+        methodIds = new BitIntSet(dex.methodIds().size());
+        fieldIds = new BitIntSet(dex.fieldIds().size());
+        for (IntIterator i = typeStringIndexes.iterator(); i.hasNext(); ) {
+            int typeIndex = dex.findTypeIndex(i.next());
             if (typeIndex < 0) {
                 continue; // this type name isn't used as a type in this dex
             }
-            methodIds.addAll(getMethodIds(dex, memberNameIndexes, typeIndex));
-            fieldIds.addAll(getFieldIds(dex, memberNameIndexes, typeIndex));
+            methodIds.merge(getMethodIds(dex, memberNameIndexes, typeIndex));
+            fieldIds.merge(getFieldIds(dex, memberNameIndexes, typeIndex));
         }
 
         codeReader.setFieldVisitor(new CodeReader.Visitor() {
             public void visit(DecodedInstruction[] all,
                     DecodedInstruction one) {
                 int fieldId = one.getIndex();
-                if (fieldIds.contains(fieldId)) {
+                if (fieldIds.has(fieldId)) {
                     out.println(location() + ": field reference " + dex.fieldIds().get(fieldId)
                             + " (" + OpcodeInfo.getName(one.getOpcode()) + ")");
                 }
@@ -90,7 +90,7 @@ public final class FindUsages {
         codeReader.setMethodVisitor(new CodeReader.Visitor() {
             public void visit(DecodedInstruction[] all, DecodedInstruction one) {
                 int methodId = one.getIndex();
-                if (methodIds.contains(methodId)) {
+                if (methodIds.has(methodId)) {
                     out.println(location() + ": method reference " + dex.methodIds().get(methodId)
                             + " (" + OpcodeInfo.getName(one.getOpcode()) + ")");
                 }
@@ -127,7 +127,7 @@ public final class FindUsages {
             ClassData classData = dex.readClassData(classDef);
             for (ClassData.Field field : classData.allFields()) {
                 int fieldIndex = field.getFieldIndex();
-                if (fieldIds.contains(fieldIndex)) {
+                if (fieldIds.has(fieldIndex)) {
                     out.println(location() + " field declared " + dex.fieldIds().get(fieldIndex));
                 }
             }
@@ -135,7 +135,7 @@ public final class FindUsages {
             for (ClassData.Method method : classData.allMethods()) {
                 currentMethod = method;
                 int methodIndex = method.getMethodIndex();
-                if (methodIds.contains(methodIndex)) {
+                if (methodIds.has(methodIndex)) {
                     out.println(location() + " method declared " + dex.methodIds().get(methodIndex));
                 }
                 if (method.getCodeOffset() != 0) {
@@ -152,11 +152,11 @@ public final class FindUsages {
      * Returns the fields with {@code memberNameIndex} declared by {@code
      * declaringType}.
      */
-    private Set<Integer> getFieldIds(DexBuffer dex, Set<Integer> memberNameIndexes, int declaringType) {
-        Set<Integer> fields = new HashSet<Integer>();
+    private IntSet getFieldIds(DexBuffer dex, IntSet memberNameIndexes, int declaringType) {
+        IntSet fields = new BitIntSet(dex.fieldIds().size());
         int fieldIndex = 0;
         for (FieldId fieldId : dex.fieldIds()) {
-            if (memberNameIndexes.contains(fieldId.getNameIndex())
+            if (memberNameIndexes.has(fieldId.getNameIndex())
                     && declaringType == fieldId.getDeclaringClassIndex()) {
                 fields.add(fieldIndex);
             }
@@ -169,14 +169,14 @@ public final class FindUsages {
      * Returns the methods with {@code memberNameIndex} declared by {@code
      * declaringType} and its subtypes.
      */
-    private Set<Integer> getMethodIds(DexBuffer dex, Set<Integer> memberNameIndexes, int declaringType) {
-        Set<Integer> subtypes = findAssignableTypes(dex, declaringType);
+    private IntSet getMethodIds(DexBuffer dex, IntSet memberNameIndexes, int declaringType) {
+        IntSet subtypes = findAssignableTypes(dex, declaringType);
 
-        Set<Integer> methods = new HashSet<Integer>();
+        IntSet methods = new BitIntSet(dex.methodIds().size());
         int methodIndex = 0;
         for (MethodId method : dex.methodIds()) {
-            if (memberNameIndexes.contains(method.getNameIndex())
-                    && subtypes.contains(method.getDeclaringClassIndex())) {
+            if (memberNameIndexes.has(method.getNameIndex())
+                    && subtypes.has(method.getDeclaringClassIndex())) {
                 methods.add(methodIndex);
             }
             methodIndex++;
@@ -187,18 +187,19 @@ public final class FindUsages {
     /**
      * Returns the set of types that can be assigned to {@code typeIndex}.
      */
-    private Set<Integer> findAssignableTypes(DexBuffer dex, int typeIndex) {
-        Set<Integer> assignableTypes = new HashSet<Integer>();
+    private IntSet findAssignableTypes(DexBuffer dex, int typeIndex) {
+        IntSet assignableTypes = new BitIntSet(dex.typeIds().size());
         assignableTypes.add(typeIndex);
 
         for (ClassDef classDef : dex.classDefs()) {
-            if (assignableTypes.contains(classDef.getSupertypeIndex())) {
+            int supertypeIndex = classDef.getSupertypeIndex();
+            if (supertypeIndex != ClassDef.NO_INDEX && assignableTypes.has(supertypeIndex)) {
                 assignableTypes.add(classDef.getTypeIndex());
                 continue;
             }
 
             for (int implemented : classDef.getInterfaces()) {
-                if (assignableTypes.contains(implemented)) {
+                if (assignableTypes.has(implemented)) {
                     assignableTypes.add(classDef.getTypeIndex());
                     break;
                 }
@@ -27,7 +27,7 @@ public final class Main {
         String declaredBy = args[1];
         String memberName = args[2];
 
-        DexBuffer dex = new DexBuffer(new File(dexFile));
+        DexBuffer dex = DexBuffer.map(new File(dexFile));
         PrintWriter out = new PrintWriter(System.out);
         new FindUsages(dex, declaredBy, memberName, out).findUsages();
         out.flush();
@@ -23,15 +23,15 @@ import com.android.dx.io.DexBuffer;
 import com.android.dx.io.EncodedValueReader;
 import com.android.dx.io.MethodId;
 import com.android.dx.io.instructions.DecodedInstruction;
+import com.android.dx.util.BitIntSet;
+import com.android.dx.util.IntSet;
 import java.io.PrintWriter;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.regex.Pattern;
 
 public final class Grep {
     private final DexBuffer dex;
     private final CodeReader codeReader = new CodeReader();
-    private final Set<Integer> stringIds;
+    private final IntSet stringIds;
 
     private final PrintWriter out;
     private int count = 0;
@@ -61,7 +61,7 @@ public final class Grep {
     }
 
     private void encounterString(int index) {
-        if (stringIds.contains(index)) {
+        if (stringIds.has(index)) {
             out.println(location() + " " + dex.strings().get(index));
             count++;
         }
@@ -111,8 +111,8 @@ public final class Grep {
         return count;
     }
 
-    private Set<Integer> getStringIds(DexBuffer dex, Pattern pattern) {
-        Set<Integer> stringIds = new HashSet<Integer>();
+    private IntSet getStringIds(DexBuffer dex, Pattern pattern) {
+        IntSet stringIds = new BitIntSet(dex.strings().size());
         int stringIndex = 0;
         for (String s : dex.strings()) {
             if (pattern.matcher(s).find()) {
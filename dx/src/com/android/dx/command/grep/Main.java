@@ -27,7 +27,7 @@ public final class Main {
         String dexFile = args[0];
         String pattern = args[1];
 
-        DexBuffer dex = new DexBuffer(new File(dexFile));
+        DexBuffer dex = DexBuffer.map(new File(dexFile));
         int count = new Grep(dex, Pattern.compile(pattern), new PrintWriter(System.out)).grep();
         System.exit((count > 0) ? 0 : 1);
     }
@@ -36,6 +36,13 @@ public class CfOptions {
     /** whether to do SSA/register optimization */
     public boolean optimize = false;
 
+    /**
+     * whether to optimize trivial methods too; if {@code false}, methods
+     * that {@link com.android.dx.ssa.Optimizer#isTrivial} accepts are
+     * translated without optimization
+     */
+    public boolean optimizeTrivial = true;
+
     /** filename containing list of methods to optimize */
     public String optimizeListFile = null;
 
@@ -45,6 +52,12 @@ public class CfOptions {
     /** whether to print statistics to stdout at end of compile cycle */
     public boolean statistics;
 
+    /**
+     * {@code null-ok;} cache of translated methods to look methods up in
+     * before translating them, or {@code null} to translate every method
+     */
+    public MethodCache methodCache = null;
+
     /** where to issue warnings to */
     public PrintStream warn = System.err;
 }
@@ -54,6 +54,15 @@ import com.android.dx.rop.type.Type;
 import com.android.dx.rop.type.TypeList;
 import com.android.dx.ssa.Optimizer;
 import com.android.dx.util.ExceptionWithContext;
+import com.android.dx.util.Metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Static method that turns {@code byte[]}s containing Java
@@ -83,8 +92,32 @@ public class CfTranslator {
      */
     public static ClassDefItem translate(String filePath, byte[] bytes,
             CfOptions cfOptions, DexOptions dexOptions) {
+        return translate(filePath, bytes, cfOptions, dexOptions, null);
+    }
+
+    /**
+     * Takes a {@code byte[]}, interprets it as a Java classfile, and
+     * translates it into a {@link ClassDefItem}, translating the code of
+     * its methods concurrently.
+     *
+     * <p>The code of each method is translated by a task given to
+     * {@code executor}. The calling thread runs itself any task that
+     * hasn't started by the time it needs its result, so the executor
+     * may be the same pool this method is called from.</p>
+     *
+     * @param filePath {@code non-null;} the file path for the class,
+     * excluding any base directory specification
+     * @param bytes {@code non-null;} contents of the file
+     * @param cfOptions options for class translation
+     * @param dexOptions options for dex output
+     * @param executor {@code null-ok;} executor to translate methods with,
+     * or {@code null} to translate them on the calling thread
+     * @return {@code non-null;} the translated class
+     */
+    public static ClassDefItem translate(String filePath, byte[] bytes,
+            CfOptions cfOptions, DexOptions dexOptions, Executor executor) {
         try {
-            return translate0(filePath, bytes, cfOptions, dexOptions);
+            return translate0(filePath, bytes, cfOptions, dexOptions, executor);
         } catch (RuntimeException ex) {
             String msg = "...while processing " + filePath;
             throw ExceptionWithContext.withContext(ex, msg);
@@ -101,15 +134,23 @@ public class CfTranslator {
      * @param bytes {@code non-null;} contents of the file
      * @param cfOptions options for class translation
      * @param dexOptions options for dex output
+     * @param executor {@code null-ok;} executor to translate methods with
      * @return {@code non-null;} the translated class
      */
     private static ClassDefItem translate0(String filePath, byte[] bytes,
-            CfOptions cfOptions, DexOptions dexOptions) {
+            CfOptions cfOptions, DexOptions dexOptions, Executor executor) {
+        Metrics.Timer parseTimer = Metrics.start("parse");
         DirectClassFile cf =
             new DirectClassFile(bytes, filePath, cfOptions.strictNameCheck);
 
         cf.setAttributeFactory(StdAttributeFactory.THE_ONE);
         cf.getMagic();
+        if (Metrics.isEnabled()) {
+            // Parse the whole file now, so that it's all timed here.
+            cf.getAttributes();
+        }
+        parseTimer.end();
+        Metrics.count("classes");
 
         OptimizerOptions.loadOptimizeLists(cfOptions.optimizeListFile,
                 cfOptions.dontOptimizeListFile);
@@ -131,7 +172,7 @@ public class CfTranslator {
         }
 
         processFields(cf, out);
-        processMethods(cf, cfOptions, dexOptions, out);
+        processMethods(cf, cfOptions, dexOptions, out, executor);
 
         return out;
     }
@@ -220,12 +261,21 @@ public class CfTranslator {
      * @param cfOptions {@code non-null;} options for class translation
      * @param dexOptions {@code non-null;} options for dex output
      * @param out {@code non-null;} output class
+     * @param executor {@code null-ok;} executor to translate the code of
+     * the methods with
      */
     private static void processMethods(DirectClassFile cf, CfOptions cfOptions,
-            DexOptions dexOptions, ClassDefItem out) {
+            DexOptions dexOptions, ClassDefItem out, Executor executor) {
         CstType thisClass = cf.getThisClass();
         MethodList methods = cf.getMethods();
         int sz = methods.size();
+        Optimizer optimizer =
+            new Optimizer(cfOptions.localInfo, DexTranslationAdvice.THE_ONE);
+        List<FutureTask<DalvCode>> codeTasks = null;
+
+        if (executor != null && sz > 1) {
+            codeTasks = submitCodes(cf, cfOptions, dexOptions, optimizer, executor);
+        }
 
         for (int i = 0; i < sz; i++) {
             Method one = methods.get(i);
@@ -235,68 +285,14 @@ public class CfTranslator {
                 boolean isStatic = AccessFlags.isStatic(accessFlags);
                 boolean isPrivate = AccessFlags.isPrivate(accessFlags);
                 boolean isNative = AccessFlags.isNative(accessFlags);
-                boolean isAbstract = AccessFlags.isAbstract(accessFlags);
                 boolean isConstructor = meth.isInstanceInit() ||
                     meth.isClassInit();
                 DalvCode code;
 
-                if (isNative || isAbstract) {
-                    // There's no code for native or abstract methods.
-                    code = null;
+                if (codeTasks != null) {
+                    code = awaitCode(codeTasks.get(i));
                 } else {
-                    ConcreteMethod concrete =
-                        new ConcreteMethod(one, cf,
-                                (cfOptions.positionInfo != PositionList.NONE),
-                                cfOptions.localInfo);
-
-                    TranslationAdvice advice;
-
-                    advice = DexTranslationAdvice.THE_ONE;
-
-                    RopMethod rmeth = Ropper.convert(concrete, advice);
-                    RopMethod nonOptRmeth = null;
-                    int paramSize;
-
-                    paramSize = meth.getParameterWordCount(isStatic);
-
-                    String canonicalName
-                            = thisClass.getClassType().getDescriptor()
-                                + "." + one.getName().getString();
-
-                    if (cfOptions.optimize &&
-                            OptimizerOptions.shouldOptimize(canonicalName)) {
-                        if (DEBUG) {
-                            System.err.println("Optimizing " + canonicalName);
-                        }
-
-                        nonOptRmeth = rmeth;
-                        rmeth = Optimizer.optimize(rmeth,
-                                paramSize, isStatic, cfOptions.localInfo, advice);
-
-                        if (DEBUG) {
-                            OptimizerOptions.compareOptimizerStep(nonOptRmeth,
-                                    paramSize, isStatic, cfOptions, advice, rmeth);
-                        }
-
-                        if (cfOptions.statistics) {
-                            CodeStatistics.updateRopStatistics(
-                                    nonOptRmeth, rmeth);
-                        }
-                    }
-
-                    LocalVariableInfo locals = null;
-
-                    if (cfOptions.localInfo) {
-                        locals = LocalVariableExtractor.extract(rmeth);
-                    }
-
-                    code = RopTranslator.translate(rmeth, cfOptions.positionInfo,
-                            locals, paramSize, dexOptions);
-
-                    if (cfOptions.statistics && nonOptRmeth != null) {
-                        updateDexStatistics(cfOptions, dexOptions, rmeth, nonOptRmeth, locals,
-                                paramSize, concrete.getCode().size());
-                    }
+                    code = processCode(cf, one, cfOptions, dexOptions, optimizer);
                 }
 
                 // Preserve the synchronized flag as its "declared" variant...
@@ -346,6 +342,184 @@ public class CfTranslator {
         }
     }
 
+    /**
+     * Translates the code of one method. This only reads the class file and
+     * the options, so it may run on any thread.
+     *
+     * @param cf {@code non-null;} class being translated
+     * @param one {@code non-null;} method to translate
+     * @param cfOptions {@code non-null;} options for class translation
+     * @param dexOptions {@code non-null;} options for dex output
+     * @param optimizer {@code non-null;} optimizer settings
+     * @return {@code null-ok;} the translated code, or {@code null} for
+     * native and abstract methods
+     */
+    private static DalvCode processCode(DirectClassFile cf, Method one,
+            CfOptions cfOptions, DexOptions dexOptions, Optimizer optimizer) {
+        CstType thisClass = cf.getThisClass();
+        CstMethodRef meth = new CstMethodRef(thisClass, one.getNat());
+        int accessFlags = one.getAccessFlags();
+        boolean isStatic = AccessFlags.isStatic(accessFlags);
+        boolean isNative = AccessFlags.isNative(accessFlags);
+        boolean isAbstract = AccessFlags.isAbstract(accessFlags);
+        DalvCode code;
+
+        if (isNative || isAbstract) {
+            // There's no code for native or abstract methods.
+            code = null;
+        } else {
+            Metrics.Timer methodTimer = Metrics.start("method");
+            boolean keepLines = (cfOptions.positionInfo != PositionList.NONE);
+            ConcreteMethod concrete =
+                new ConcreteMethod(one, cf, keepLines, cfOptions.localInfo);
+
+            TranslationAdvice advice = optimizer.getAdvice();
+            RopMethod rmeth = null;
+            RopMethod nonOptRmeth = null;
+            int paramSize;
+
+            paramSize = meth.getParameterWordCount(isStatic);
+
+            String canonicalName
+                    = thisClass.getClassType().getDescriptor()
+                        + "." + one.getName().getString();
+
+            boolean optimize = cfOptions.optimize &&
+                OptimizerOptions.shouldOptimize(canonicalName);
+
+            // Statistics need the unoptimized form, so they bypass the cache.
+            MethodCache cache =
+                cfOptions.statistics ? null : cfOptions.methodCache;
+            MethodCache.Key key = null;
+
+            if (cache != null) {
+                key = MethodCache.key(concrete, keepLines, cfOptions.localInfo,
+                        optimize, cfOptions.optimizeTrivial);
+                rmeth = cache.get(key);
+                Metrics.count((rmeth != null) ? "method-cache.hits"
+                        : "method-cache.misses");
+            }
+
+            if (rmeth == null) {
+                Metrics.Timer ropperTimer = Metrics.start("ropper");
+                rmeth = Ropper.convert(concrete, advice);
+                ropperTimer.end();
+
+                if (optimize && !cfOptions.optimizeTrivial &&
+                        optimizer.isTrivial(rmeth)) {
+                    optimize = false;
+                    Metrics.count("methods.trivial");
+                }
+
+                if (optimize) {
+                    if (DEBUG) {
+                        System.err.println("Optimizing " + canonicalName);
+                    }
+
+                    nonOptRmeth = rmeth;
+                    rmeth = optimizer.optimize(rmeth, paramSize, isStatic);
+                    Metrics.count("methods.optimized");
+
+                    if (DEBUG) {
+                        OptimizerOptions.compareOptimizerStep(nonOptRmeth,
+                                paramSize, isStatic, cfOptions, advice, rmeth);
+                    }
+
+                    if (cfOptions.statistics) {
+                        CodeStatistics.updateRopStatistics(
+                                nonOptRmeth, rmeth);
+                    }
+                }
+
+                if (cache != null) {
+                    cache.put(key, rmeth);
+                }
+            }
+
+            LocalVariableInfo locals = null;
+
+            if (cfOptions.localInfo) {
+                locals = LocalVariableExtractor.extract(rmeth);
+            }
+
+            Metrics.Timer translateTimer = Metrics.start("rop-translate");
+            code = RopTranslator.translate(rmeth, cfOptions.positionInfo,
+                    locals, paramSize, dexOptions);
+            translateTimer.end();
+
+            if (cfOptions.statistics && nonOptRmeth != null) {
+                updateDexStatistics(cfOptions, dexOptions, rmeth, nonOptRmeth, locals,
+                        paramSize, concrete.getCode().size());
+            }
+
+            Metrics.count("methods");
+            long nanos = methodTimer.end();
+            if (Metrics.isEnabled()) {
+                Metrics.recordMethod(meth.toHuman(), nanos);
+            }
+        }
+
+        return code;
+    }
+
+    /**
+     * Starts translating the code of all the methods of a class.
+     *
+     * @return {@code non-null;} one task per method, in order
+     */
+    private static List<FutureTask<DalvCode>> submitCodes(final DirectClassFile cf,
+            final CfOptions cfOptions, final DexOptions dexOptions,
+            final Optimizer optimizer, Executor executor) {
+        MethodList methods = cf.getMethods();
+        int sz = methods.size();
+        List<FutureTask<DalvCode>> tasks = new ArrayList<FutureTask<DalvCode>>(sz);
+        boolean accepting = true;
+
+        for (int i = 0; i < sz; i++) {
+            final Method one = methods.get(i);
+            FutureTask<DalvCode> task =
+                new FutureTask<DalvCode>(new Callable<DalvCode>() {
+                    public DalvCode call() {
+                        return processCode(cf, one, cfOptions, dexOptions,
+                                optimizer);
+                    }
+                });
+            tasks.add(task);
+            if (accepting) {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    // The pool is shutting down; awaitCode() runs the rest.
+                    accepting = false;
+                }
+            }
+        }
+
+        return tasks;
+    }
+
+    /**
+     * Gets the result of a task from {@link #submitCodes}, running it on
+     * the calling thread if no other thread has started it.
+     */
+    private static DalvCode awaitCode(FutureTask<DalvCode> task) {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
     /**
      * Helper that updates the dex statistics.
      */
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.dex.cf;
+
+import com.android.dx.cf.code.ByteCatchList;
+import com.android.dx.cf.code.ByteOps;
+import com.android.dx.cf.code.BytecodeArray;
+import com.android.dx.cf.code.ConcreteMethod;
+import com.android.dx.cf.code.LineNumberList;
+import com.android.dx.cf.code.LocalVariableList;
+import com.android.dx.rop.code.LocalItem;
+import com.android.dx.rop.code.RopMethod;
+import com.android.dx.rop.cst.Constant;
+import com.android.dx.util.ByteArray;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of translated methods, so that a method whose code is
+ * the same as one translated before skips the {@code Ropper} and the
+ * optimizer. Two methods are the same if their bytecode is the same once
+ * constant pool indices are replaced by the constants they resolve to,
+ * and everything else the translation depends on is the same too. The
+ * least recently used entries are evicted first.
+ *
+ * <p>The cache holds the optimized rop form of each method rather than
+ * its {@link com.android.dx.dex.code.DalvCode}, since the latter gets
+ * modified when it is added to a dex file. An instance may be shared by
+ * any number of threads, and across runs.</p>
+ */
+public final class MethodCache {
+    /** {@code > 0;} maximum number of entries */
+    private final int maxSize;
+
+    /** {@code non-null;} the entries, least recently used first */
+    private final LinkedHashMap<Key, RopMethod> entries;
+
+    /**
+     * Constructs an instance.
+     *
+     * @param maxSize {@code > 0;} maximum number of methods to keep
+     */
+    public MethodCache(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Key, RopMethod>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Key, RopMethod> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @return {@code > 0;} the maximum number of methods to keep
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Gets the translated form of a method.
+     *
+     * @param key {@code non-null;} key of the method, as returned by
+     * {@link #key}
+     * @return {@code null-ok;} the translated method, or {@code null} if
+     * it isn't in the cache
+     */
+    public RopMethod get(Key key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Stores the translated form of a method.
+     *
+     * @param key {@code non-null;} key of the method, as returned by
+     * {@link #key}
+     * @param rmeth {@code non-null;} the translated method
+     */
+    public void put(Key key, RopMethod rmeth) {
+        /*
+         * The predecessors are computed lazily; do it now, so that
+         * threads sharing the method only ever read it.
+         */
+        rmeth.getExitPredecessors();
+
+        synchronized (entries) {
+            entries.put(key, rmeth);
+        }
+    }
+
+    /**
+     * Computes the key of a method.
+     *
+     * @param method {@code non-null;} the method
+     * @param keepLines whether line numbers are kept
+     * @param keepLocals whether local variable information is kept
+     * @param optimize whether the method gets optimized
+     * @param optimizeTrivial whether trivial methods get optimized too
+     * @return {@code non-null;} the key
+     */
+    public static Key key(ConcreteMethod method, boolean keepLines,
+            boolean keepLocals, boolean optimize, boolean optimizeTrivial) {
+        final ArrayList<Constant> constants = new ArrayList<Constant>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        constants.add(method.getDefiningClass());
+        constants.add(method.getDescriptor());
+        constants.add(method.getSourceFile());
+
+        try {
+            out.writeBoolean(keepLines);
+            out.writeBoolean(keepLocals);
+            out.writeBoolean(optimize);
+            out.writeBoolean(optimizeTrivial);
+            out.writeBoolean(method.getAccSuper());
+            out.writeInt(method.getAccessFlags());
+            out.writeInt(method.getMaxStack());
+            out.writeInt(method.getMaxLocals());
+
+            BytecodeArray code = method.getCode();
+            ByteArray codeBytes = code.getBytes();
+            final byte[] normalized = new byte[codeBytes.size()];
+            codeBytes.getBytes(normalized, 0);
+            code.forEach(new BytecodeArray.BaseVisitor() {
+                @Override
+                public void visitConstant(int opcode, int offset, int length,
+                        Constant cst, int value) {
+                    constants.add(cst);
+                    int indexSize = constantIndexSize(opcode);
+                    for (int i = 1; i <= indexSize; i++) {
+                        normalized[offset + i] = 0;
+                    }
+                }
+            });
+            out.writeInt(normalized.length);
+            out.write(normalized);
+
+            ByteCatchList catches = method.getCatches();
+            int sz = catches.size();
+            out.writeInt(sz);
+            for (int i = 0; i < sz; i++) {
+                ByteCatchList.Item item = catches.get(i);
+                out.writeInt(item.getStartPc());
+                out.writeInt(item.getEndPc());
+                out.writeInt(item.getHandlerPc());
+                constants.add(item.getExceptionClass());
+            }
+
+            LineNumberList lines = method.getLineNumbers();
+            sz = lines.size();
+            out.writeInt(sz);
+            for (int i = 0; i < sz; i++) {
+                LineNumberList.Item item = lines.get(i);
+                out.writeInt(item.getStartPc());
+                out.writeInt(item.getLineNumber());
+            }
+
+            LocalVariableList locals = method.getLocalVariables();
+            sz = locals.size();
+            out.writeInt(sz);
+            for (int i = 0; i < sz; i++) {
+                LocalVariableList.Item item = locals.get(i);
+                LocalItem local = item.getLocalItem();
+                out.writeInt(item.getStartPc());
+                out.writeInt(item.getLength());
+                out.writeInt(item.getIndex());
+                constants.add(item.getDescriptor());
+                constants.add(local.getName());
+                constants.add(local.getSignature());
+            }
+
+            out.close();
+        } catch (IOException ex) {
+            // ByteArrayOutputStream doesn't throw.
+            throw new AssertionError(ex);
+        }
+
+        return new Key(bytes.toByteArray(),
+                constants.toArray(new Constant[constants.size()]));
+    }
+
+    /**
+     * Gets the size of the constant pool index of an instruction.
+     *
+     * @param opcode the opcode
+     * @return the number of bytes following the opcode that hold the
+     * index, or {@code 0} if the instruction refers to no constant pool
+     * entry
+     */
+    private static int constantIndexSize(int opcode) {
+        switch (opcode) {
+            case ByteOps.LDC: {
+                return 1;
+            }
+            case ByteOps.LDC_W:
+            case ByteOps.LDC2_W:
+            case ByteOps.GETSTATIC:
+            case ByteOps.PUTSTATIC:
+            case ByteOps.GETFIELD:
+            case ByteOps.PUTFIELD:
+            case ByteOps.INVOKEVIRTUAL:
+            case ByteOps.INVOKESPECIAL:
+            case ByteOps.INVOKESTATIC:
+            case ByteOps.INVOKEINTERFACE:
+            case ByteOps.NEW:
+            case ByteOps.ANEWARRAY:
+            case ByteOps.CHECKCAST:
+            case ByteOps.INSTANCEOF:
+            case ByteOps.MULTIANEWARRAY: {
+                return 2;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Key of a method: its normalized bytecode and other settings, and the
+     * constants it refers to. Keys are compared in full, so that methods
+     * with colliding hashes are never confused.
+     */
+    public static final class Key {
+        /** {@code non-null;} the normalized bytecode and settings */
+        private final byte[] bytes;
+
+        /** {@code non-null;} the constants, in order of reference */
+        private final Constant[] constants;
+
+        /** the hash code */
+        private final int hash;
+
+        private Key(byte[] bytes, Constant[] constants) {
+            this.bytes = bytes;
+            this.constants = constants;
+            this.hash = Arrays.hashCode(bytes) * 31
+                    + Arrays.hashCode(constants);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) other;
+            return hash == key.hash
+                    && Arrays.equals(bytes, key.bytes)
+                    && Arrays.equals(constants, key.constants);
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.android.dx.dex.code;
 
 import com.android.dx.rop.cst.Constant;
 import com.android.dx.rop.type.Type;
+import com.android.dx.util.Metrics;
 
 import java.util.HashSet;
 
@@ -105,10 +106,12 @@ public final class DalvCode {
             return;
         }
 
+        Metrics.Timer timer = Metrics.start("output-finisher");
         insns = unprocessedInsns.finishProcessingAndGetList();
         positions = PositionList.make(insns, positionInfo);
         locals = LocalList.make(insns);
         catches = unprocessedCatches.build();
+        timer.end();
 
         // Let them be gc'ed.
         unprocessedInsns = null;
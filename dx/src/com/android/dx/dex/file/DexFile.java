@@ -25,12 +25,17 @@ import com.android.dx.rop.cst.CstFieldRef;
 import com.android.dx.rop.cst.CstString;
 import com.android.dx.rop.cst.CstType;
 import com.android.dx.rop.type.Type;
+import com.android.dx.util.AnnotatedOutput;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
 import com.android.dx.util.ExceptionWithContext;
+import com.android.dx.util.FileChannelOutput;
+import com.android.dx.util.Metrics;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -202,6 +207,73 @@ public final class DexFile {
         }
     }
 
+    /**
+     * Writes the contents of this instance to a file. If the channel is at
+     * position {@code 0}, the sections are streamed as they are written,
+     * and the signature and checksum are patched into the header at the
+     * end, so the file never has to be held in memory as a whole.
+     * Otherwise, for example if the file was opened for appending, the
+     * contents are built in memory and written at the current position.
+     *
+     * @param channel {@code non-null;} where to write to; it must not be
+     * shared with other writers
+     */
+    public void writeTo(FileChannel channel) throws IOException {
+        if (channel.position() != 0) {
+            ByteBuffer bb = ByteBuffer.wrap(toDex0(false, false).getArray());
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            return;
+        }
+
+        placeSections();
+
+        FileChannelOutput out = new FileChannelOutput(channel);
+        MessageDigest md;
+
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        Adler32 a32 = new Adler32();
+        out.setDigest(md, 32);
+        out.setChecksum(a32, 32);
+
+        writeSections(out);
+        out.flush();
+
+        /*
+         * The checksum covers the signature too, which is only known now,
+         * so combine the checksum of the signature with the one of the
+         * rest of the file instead of reading the file back.
+         */
+        byte[] hashes = new byte[24];
+        try {
+            int amt = md.digest(hashes, 4, 20);
+            if (amt != 20) {
+                throw new RuntimeException("unexpected digest write: " + amt +
+                                           " bytes");
+            }
+        } catch (DigestException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        Adler32 signatureSum = new Adler32();
+        signatureSum.update(hashes, 4, 20);
+        int sum = combineAdler32((int) signatureSum.getValue(),
+                (int) a32.getValue(), fileSize - 32);
+
+        hashes[0] = (byte) sum;
+        hashes[1] = (byte) (sum >> 8);
+        hashes[2] = (byte) (sum >> 16);
+        hashes[3] = (byte) (sum >> 24);
+        out.patch(8, hashes);
+        channel.position(out.getBase() + fileSize);
+    }
+
     /**
      * Returns the contents of this instance as a {@code .dex} file,
      * in {@code byte[]} form.
@@ -493,12 +565,44 @@ public final class DexFile {
      */
     private ByteArrayAnnotatedOutput toDex0(boolean annotate,
             boolean verbose) {
+        placeSections();
+
+        byte[] barr = new byte[fileSize];
+        ByteArrayAnnotatedOutput out = new ByteArrayAnnotatedOutput(barr);
+
+        if (annotate) {
+            out.enableAnnotations(dumpWidth, verbose);
+        }
+
+        writeSections(out);
+
+        // Perform final bookkeeping.
+
+        calcSignature(barr);
+        calcChecksum(barr);
+
+        if (annotate) {
+            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
+                    "\nmethod code index:\n\n");
+            getStatistics().writeAnnotation(out);
+            out.finishAnnotating();
+        }
+
+        return out;
+    }
+
+    /**
+     * Prepares all the sections and places them within the file,
+     * setting {@link #fileSize}.
+     */
+    private void placeSections() {
         /*
          * The following is ordered so that the prepare() calls which
          * add items happen before the calls to the sections that get
          * added to.
          */
 
+        Metrics.Timer timer = Metrics.start("dex-place");
         classDefs.prepare();
         classData.prepare();
         wordData.prepare();
@@ -550,15 +654,18 @@ public final class DexFile {
             }
         }
 
-        // Write out all the sections.
-
         fileSize = offset;
-        byte[] barr = new byte[fileSize];
-        ByteArrayAnnotatedOutput out = new ByteArrayAnnotatedOutput(barr);
+        timer.end();
+    }
 
-        if (annotate) {
-            out.enableAnnotations(dumpWidth, verbose);
-        }
+    /**
+     * Writes out all the sections, which must have been placed.
+     *
+     * @param out {@code non-null;} where to write to
+     */
+    private void writeSections(AnnotatedOutput out) {
+        Metrics.Timer timer = Metrics.start("dex-write");
+        int count = sections.length;
 
         for (int i = 0; i < count; i++) {
             try {
@@ -585,20 +692,7 @@ public final class DexFile {
         if (out.getCursor() != fileSize) {
             throw new RuntimeException("foreshortened write");
         }
-
-        // Perform final bookkeeping.
-
-        calcSignature(barr);
-        calcChecksum(barr);
-
-        if (annotate) {
-            wordData.writeIndexAnnotation(out, ItemType.TYPE_CODE_ITEM,
-                    "\nmethod code index:\n\n");
-            getStatistics().writeAnnotation(out);
-            out.finishAnnotating();
-        }
-
-        return out;
+        timer.end();
     }
 
     /**
@@ -644,6 +738,33 @@ public final class DexFile {
         }
     }
 
+    /**
+     * Combines the Adler-32 checksums of two consecutive blocks of data
+     * into the checksum of their concatenation, as zlib's
+     * {@code adler32_combine()} does.
+     *
+     * @param adler1 checksum of the first block
+     * @param adler2 checksum of the second block
+     * @param len2 {@code >= 0;} length of the second block
+     * @return the checksum of both blocks
+     */
+    private static int combineAdler32(int adler1, int adler2, int len2) {
+        final int base = 65521;
+        long rem = len2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff)
+                + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+
+        return (int) (sum1 | (sum2 << 16));
+    }
+
     /**
      * Calculates the checksum for the {@code .dex} file in the
      * given array, and modify the array to contain it.
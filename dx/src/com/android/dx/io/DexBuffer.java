@@ -35,9 +35,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.AbstractList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
@@ -47,18 +50,36 @@ import java.util.zip.ZipFile;
 
 /**
  * The bytes of a dex file in memory for reading and writing. All int offsets
- * are unsigned.
+ * are unsigned. The bytes are either held in a heap array, or mapped
+ * read-only from a file by {@link #map}.
  */
 public final class DexBuffer {
-    private byte[] data;
+    private ByteBuffer data;
     private final TableOfContents tableOfContents = new TableOfContents();
     private int length = 0;
 
+    /** number of slots in {@link #decodedStrings}; a power of two */
+    private static final int DECODED_STRING_CACHE_SIZE = 1024;
+
+    /**
+     * Recently decoded strings, each in slot {@code index % size}. Slots
+     * are replaced without locking; entries are immutable, so a racing
+     * reader sees either the old entry or the new one.
+     */
+    private final DecodedString[] decodedStrings = new DecodedString[DECODED_STRING_CACHE_SIZE];
+
     private final List<String> strings = new AbstractList<String>() {
         @Override public String get(int index) {
             checkBounds(index, tableOfContents.stringIds.size);
-            return open(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM))
+            int slot = index & (DECODED_STRING_CACHE_SIZE - 1);
+            DecodedString cached = decodedStrings[slot];
+            if (cached != null && cached.index == index) {
+                return cached.value;
+            }
+            String result = open(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM))
                     .readString();
+            decodedStrings[slot] = new DecodedString(index, result);
+            return result;
         }
         @Override public int size() {
             return tableOfContents.stringIds.size;
@@ -67,8 +88,7 @@ public final class DexBuffer {
 
     private final List<Integer> typeIds = new AbstractList<Integer>() {
         @Override public Integer get(int index) {
-            checkBounds(index, tableOfContents.typeIds.size);
-            return open(tableOfContents.typeIds.off + (index * SizeOf.TYPE_ID_ITEM)).readInt();
+            return descriptorIndexFromTypeIndex(index);
         }
         @Override public int size() {
             return tableOfContents.typeIds.size;
@@ -77,8 +97,7 @@ public final class DexBuffer {
 
     private final List<String> typeNames = new AbstractList<String>() {
         @Override public String get(int index) {
-            checkBounds(index, tableOfContents.typeIds.size);
-            return strings.get(typeIds.get(index));
+            return strings.get(descriptorIndexFromTypeIndex(index));
         }
         @Override public int size() {
             return tableOfContents.typeIds.size;
@@ -122,7 +141,7 @@ public final class DexBuffer {
      * Creates a new dex buffer defining no classes.
      */
     public DexBuffer() {
-        this.data = new byte[0];
+        this.data = wrap(new byte[0]);
     }
 
     /**
@@ -130,11 +149,45 @@ public final class DexBuffer {
      * modify {@code data} after using it to create a dex buffer.
      */
     public DexBuffer(byte[] data) throws IOException {
-        this.data = data;
+        this.data = wrap(data);
         this.length = data.length;
         this.tableOfContents.readFrom(this);
     }
 
+    private DexBuffer(ByteBuffer data) throws IOException {
+        this.data = data;
+        this.length = data.capacity();
+        this.tableOfContents.readFrom(this);
+    }
+
+    /**
+     * Creates a new read-only dex buffer that is memory-mapped from the dex
+     * file {@code file}, so that opening it neither reads nor copies the
+     * file. Dex files inside archives can't be mapped and are loaded into
+     * memory instead. The file must not be modified while the buffer is in
+     * use.
+     */
+    public static DexBuffer map(File file) throws IOException {
+        if (!file.getName().endsWith(".dex")) {
+            return new DexBuffer(file);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            return new DexBuffer(mapped);
+        } finally {
+            // the mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer wrap(byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
     /**
      * Creates a new dex buffer of the dex in {@code in}, and closes {@code in}.
      */
@@ -172,8 +225,9 @@ public final class DexBuffer {
         }
         in.close();
 
-        this.data = bytesOut.toByteArray();
-        this.length = data.length;
+        byte[] bytes = bytesOut.toByteArray();
+        this.data = wrap(bytes);
+        this.length = bytes.length;
         this.tableOfContents.readFrom(this);
     }
 
@@ -184,7 +238,19 @@ public final class DexBuffer {
     }
 
     public void writeTo(OutputStream out) throws IOException {
-        out.write(data);
+        if (data.hasArray()) {
+            out.write(data.array(), data.arrayOffset(), data.capacity());
+            return;
+        }
+
+        ByteBuffer in = data.duplicate();
+        in.clear();
+        byte[] buffer = new byte[8192];
+        while (in.hasRemaining()) {
+            int count = Math.min(buffer.length, in.remaining());
+            in.get(buffer, 0, count);
+            out.write(buffer, 0, count);
+        }
     }
 
     public void writeTo(File dexOut) throws IOException {
@@ -212,7 +278,7 @@ public final class DexBuffer {
     }
 
     public void noMoreSections() {
-        data = new byte[length];
+        data = wrap(new byte[length]);
     }
 
     public int getLength() {
@@ -223,18 +289,90 @@ public final class DexBuffer {
         return (position + 3) & ~3;
     }
 
+    /**
+     * Returns the bytes of this dex. For a heap buffer this is the backing
+     * array itself; a mapped buffer is copied.
+     */
     public byte[] getBytes() {
-        return data;
+        if (data.hasArray() && data.arrayOffset() == 0
+                && data.array().length == data.capacity()) {
+            return data.array();
+        }
+        return copyOfRange(0, data.capacity());
+    }
+
+    /**
+     * Returns whether this buffer is memory-mapped from a file.
+     */
+    public boolean isMapped() {
+        return !data.hasArray();
+    }
+
+    private byte[] copyOfRange(int from, int to) {
+        byte[] result = new byte[to - from];
+        ByteBuffer in = data.duplicate();
+        in.clear();
+        in.position(from);
+        in.get(result);
+        return result;
     }
 
     public List<String> strings() {
         return strings;
     }
 
+    /**
+     * Returns the string at {@code index} without decoding it. Prefer this
+     * to {@link #strings} to compare or copy strings.
+     */
+    public StringData stringData(int index) {
+        checkBounds(index, tableOfContents.stringIds.size);
+        return open(tableOfContents.stringIds.off + (index * SizeOf.STRING_ID_ITEM))
+                .readStringData();
+    }
+
+    /**
+     * Returns the byte at {@code offset}.
+     */
+    byte byteAt(int offset) {
+        return data.get(offset);
+    }
+
     public List<Integer> typeIds() {
         return typeIds;
     }
 
+    /**
+     * Returns the string index of the descriptor of the type at
+     * {@code typeIndex}. Unlike {@link #typeIds}, this boxes nothing.
+     */
+    public int descriptorIndexFromTypeIndex(int typeIndex) {
+        checkBounds(typeIndex, tableOfContents.typeIds.size);
+        return data.getInt(tableOfContents.typeIds.off + (typeIndex * SizeOf.TYPE_ID_ITEM));
+    }
+
+    /**
+     * Returns the index of the type whose descriptor is the string at
+     * {@code descriptorIndex}. If there is no such type, returns {@code
+     * -(insertionPoint + 1)} like {@link java.util.Collections#binarySearch}.
+     */
+    public int findTypeIndex(int descriptorIndex) {
+        int low = 0;
+        int high = tableOfContents.typeIds.size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midDescriptorIndex = descriptorIndexFromTypeIndex(mid);
+            if (midDescriptorIndex < descriptorIndex) {
+                low = mid + 1;
+            } else if (midDescriptorIndex > descriptorIndex) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
     public List<String> typeNames() {
         return typeNames;
     }
@@ -315,7 +453,7 @@ public final class DexBuffer {
         }
 
         private Section(int position) {
-            this("section", position, data.length);
+            this("section", position, data.capacity());
         }
 
         public int getPosition() {
@@ -323,17 +461,13 @@ public final class DexBuffer {
         }
 
         public int readInt() {
-            int result = (data[position] & 0xff)
-                    | (data[position + 1] & 0xff) << 8
-                    | (data[position + 2] & 0xff) << 16
-                    | (data[position + 3] & 0xff) << 24;
+            int result = data.getInt(position);
             position += 4;
             return result;
         }
 
         public short readShort() {
-            int result = (data[position] & 0xff)
-                    | (data[position + 1] & 0xff) << 8;
+            int result = data.getShort(position);
             position += 2;
             return (short) result;
         }
@@ -343,11 +477,11 @@ public final class DexBuffer {
         }
 
         public byte readByte() {
-            return (byte) (data[position++] & 0xff);
+            return data.get(position++);
         }
 
         public byte[] readByteArray(int length) {
-            byte[] result = Arrays.copyOfRange(data, position, position + length);
+            byte[] result = copyOfRange(position, position + length);
             position += length;
             return result;
         }
@@ -378,7 +512,8 @@ public final class DexBuffer {
             for (int i = 0; i < size; i++) {
                 types[i] = readShort();
             }
-            alignToFourBytes();
+            // skip the padding without writing to it; the buffer may be read-only
+            position = DexBuffer.fourByteAlign(position);
             return new TypeList(DexBuffer.this, types);
         }
 
@@ -401,6 +536,34 @@ public final class DexBuffer {
             }
         }
 
+        /**
+         * Reads a string ID and returns its string without decoding it.
+         * This section must be positioned within the string IDs.
+         */
+        public StringData readStringData() {
+            int index = (position - tableOfContents.stringIds.off) / SizeOf.STRING_ID_ITEM;
+            int offset = readInt();
+            int savedPosition = position;
+            position = offset;
+            try {
+                int expectedLength = readUleb128();
+                int start = position;
+                int length = 0;
+                for (int b; (b = data.get(position)) != 0; position++) {
+                    if ((b & 0xc0) != 0x80) {
+                        length++; // count lead bytes; continuation bytes are 10xxxxxx
+                    }
+                }
+                if (length != expectedLength) {
+                    throw new DexException("Declared length " + expectedLength
+                            + " doesn't match decoded length of " + length);
+                }
+                return new StringData(DexBuffer.this, index, length, start, position - start);
+            } finally {
+                position = savedPosition;
+            }
+        }
+
         public FieldId readFieldId() {
             int declaringClassIndex = readUnsignedShort();
             int typeIndex = readUnsignedShort();
@@ -567,14 +730,14 @@ public final class DexBuffer {
             int start = position;
             new EncodedValueReader(this).readValue();
             int end = position;
-            return new EncodedValue(Arrays.copyOfRange(data, start, end));
+            return new EncodedValue(copyOfRange(start, end));
         }
 
         public EncodedValue readEncodedArray() {
             int start = position;
             new EncodedValueReader(this).readArray();
             int end = position;
-            return new EncodedValue(Arrays.copyOfRange(data, start, end));
+            return new EncodedValue(copyOfRange(start, end));
         }
 
         private void ensureCapacity(int size) {
@@ -598,7 +761,7 @@ public final class DexBuffer {
             int unalignedCount = position;
             position = DexBuffer.fourByteAlign(position);
             for (int i = unalignedCount; i < position; i++) {
-                data[i] = 0;
+                data.put(i, (byte) 0);
             }
         }
 
@@ -610,19 +773,27 @@ public final class DexBuffer {
 
         public void write(byte[] bytes) {
             ensureCapacity(bytes.length);
-            System.arraycopy(bytes, 0, data, position, bytes.length);
+            if (data.hasArray()) {
+                System.arraycopy(bytes, 0, data.array(), data.arrayOffset() + position,
+                        bytes.length);
+                position += bytes.length;
+                return;
+            }
+            ByteBuffer out = data.duplicate();
+            out.clear();
+            out.position(position);
+            out.put(bytes);
             position += bytes.length;
         }
 
         public void writeByte(int b) {
             ensureCapacity(1);
-            data[position++] = (byte) b;
+            data.put(position++, (byte) b);
         }
 
         public void writeShort(short i) {
             ensureCapacity(2);
-            data[position    ] = (byte) i;
-            data[position + 1] = (byte) (i >>> 8);
+            data.putShort(position, i);
             position += 2;
         }
 
@@ -642,10 +813,7 @@ public final class DexBuffer {
 
         public void writeInt(int i) {
             ensureCapacity(4);
-            data[position    ] = (byte) i;
-            data[position + 1] = (byte) (i >>>  8);
-            data[position + 2] = (byte) (i >>> 16);
-            data[position + 3] = (byte) (i >>> 24);
+            data.putInt(position, i);
             position += 4;
         }
 
@@ -682,6 +850,19 @@ public final class DexBuffer {
             }
         }
 
+        /**
+         * Writes a string as it is encoded in its dex file, without
+         * decoding and re-encoding it.
+         */
+        public void writeStringData(StringData value) {
+            writeUleb128(value.getUtf16Size());
+            int byteCount = value.getByteCount();
+            ensureCapacity(byteCount + 1);
+            for (int i = 0; i <= byteCount; i++) {
+                data.put(position++, (byte) value.byteAt(i));
+            }
+        }
+
         public void writeTypeList(TypeList typeList) {
             short[] types = typeList.getTypes();
             writeInt(types.length);
@@ -705,4 +886,14 @@ public final class DexBuffer {
             return position - initialPosition;
         }
     }
+
+    private static final class DecodedString {
+        final int index;
+        final String value;
+
+        DecodedString(int index, String value) {
+            this.index = index;
+            this.value = value;
+        }
+    }
 }
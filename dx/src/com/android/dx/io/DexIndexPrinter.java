@@ -28,7 +28,7 @@ public final class DexIndexPrinter {
     private final TableOfContents tableOfContents;
 
     public DexIndexPrinter(File file) throws IOException {
-        this.dexBuffer = new DexBuffer(file);
+        this.dexBuffer = DexBuffer.map(file);
         this.tableOfContents = dexBuffer.getTableOfContents();
     }
 
@@ -52,10 +52,10 @@ public final class DexIndexPrinter {
     }
 
     private void printTypeIds() throws IOException {
-        int index = 0;
-        for (Integer type : dexBuffer.typeIds()) {
+        int size = dexBuffer.typeIds().size();
+        for (int index = 0; index < size; index++) {
+            int type = dexBuffer.descriptorIndexFromTypeIndex(index);
             System.out.println("type " + index + ": " + dexBuffer.strings().get(type));
-            index++;
         }
     }
 
@@ -18,6 +18,7 @@ package com.android.dx.io;
 
 import com.android.dx.util.ByteArrayByteInput;
 import com.android.dx.util.ByteInput;
+import java.util.Arrays;
 
 /**
  * An encoded value or array.
@@ -51,6 +52,15 @@ public final class EncodedValue implements Comparable<EncodedValue> {
         return data.length - other.data.length;
     }
 
+    @Override public boolean equals(Object o) {
+        return o instanceof EncodedValue
+                && Arrays.equals(data, ((EncodedValue) o).data);
+    }
+
+    @Override public int hashCode() {
+        return Arrays.hashCode(data);
+    }
+
     @Override public String toString() {
         return Integer.toHexString(data[0] & 0xff) + "...(" + data.length + ")";
     }
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.io;
+
+/**
+ * A string of a dex file, left in its MUTF-8 encoded form. Instances
+ * compare, hash and order by their encoded bytes, in the same order as
+ * {@link String#compareTo} orders the decoded strings, and only decode
+ * when {@link #toString} is called.
+ */
+public final class StringData implements Comparable<StringData> {
+    private final DexBuffer buffer;
+    private final int index;
+    private final int utf16Size;
+    private final int offset;
+    private final int byteCount;
+    private int hash;
+
+    /**
+     * @param buffer {@code non-null;} the dex file holding the string
+     * @param index index of the string in its string IDs
+     * @param utf16Size the number of UTF-16 code units of the string
+     * @param offset offset of the first MUTF-8 byte, just after the size
+     * @param byteCount number of MUTF-8 bytes, not counting the terminating
+     * {@code 0}
+     */
+    StringData(DexBuffer buffer, int index, int utf16Size, int offset, int byteCount) {
+        this.buffer = buffer;
+        this.index = index;
+        this.utf16Size = utf16Size;
+        this.offset = offset;
+        this.byteCount = byteCount;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getUtf16Size() {
+        return utf16Size;
+    }
+
+    public int getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * Returns the MUTF-8 byte at {@code i}, or {@code 0} for the
+     * terminator at {@code i == getByteCount()}.
+     */
+    public int byteAt(int i) {
+        return buffer.byteAt(offset + i) & 0xff;
+    }
+
+    public int compareTo(StringData other) {
+        for (int i = 0; ; i++) {
+            int a = byteAt(i);
+            int b = other.byteAt(i);
+            if (a != b) {
+                /*
+                 * U+0000 is encoded as 0xc0 0x80 rather than 0x00, so it
+                 * must sort before the single byte characters.
+                 */
+                if (a == 0xc0 && b != 0 && b < 0x80) {
+                    return -1;
+                } else if (b == 0xc0 && a != 0 && a < 0x80) {
+                    return 1;
+                }
+                return a - b;
+            }
+            if (a == 0) {
+                return 0;
+            }
+        }
+    }
+
+    @Override public boolean equals(Object o) {
+        if (!(o instanceof StringData)) {
+            return false;
+        }
+        StringData other = (StringData) o;
+        if (byteCount != other.byteCount || hashCode() != other.hashCode()) {
+            return false;
+        }
+        for (int i = 0; i < byteCount; i++) {
+            if (byteAt(i) != other.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override public int hashCode() {
+        int result = hash;
+        if (result == 0) {
+            for (int i = 0; i < byteCount; i++) {
+                result = 31 * result + byteAt(i);
+            }
+            hash = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the decoded string.
+     */
+    @Override public String toString() {
+        return buffer.strings().get(index);
+    }
+}
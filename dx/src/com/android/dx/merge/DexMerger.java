@@ -27,20 +27,43 @@ import com.android.dx.io.DexHasher;
 import com.android.dx.io.FieldId;
 import com.android.dx.io.MethodId;
 import com.android.dx.io.ProtoId;
+import com.android.dx.io.StringData;
+import com.android.dx.io.EncodedValue;
 import com.android.dx.util.DexException;
+import com.android.dx.util.IntList;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Combine two dex files into one.
+ * Combine two or more dex files into one. Every input is read, and every
+ * class copied, once regardless of the number of inputs.
+ *
+ * <p>With more than one thread, the values of each input section are read
+ * and adjusted concurrently, the field ids are read while the type lists and
+ * protos are merged, and instructions are transformed by worker threads a
+ * bounded number of classes ahead of the writer. Everything is still written
+ * in the same order, so the output is identical to a single-threaded merge.
  */
 public final class DexMerger {
-    private final DexBuffer dexA;
-    private final DexBuffer dexB;
+    /** number of classes whose instructions a worker transforms per task */
+    private static final int CLASS_CHUNK_SIZE = 64;
+
+    /** {@code non-null;} the inputs, in order of precedence */
+    private final DexBuffer[] dexes;
     private final CollisionPolicy collisionPolicy;
     private final WriterSizes writerSizes;
 
@@ -77,34 +100,66 @@ public final class DexMerger {
     /** individual annotations, each containing zero or more fields */
     private final DexBuffer.Section annotationOut;
 
+    /**
+     * {@code non-null;} output offset of each distinct annotation set, by its
+     * adjusted annotation offsets
+     */
+    private final HashMap<IntList, Integer> annotationSetOffsets
+            = new HashMap<IntList, Integer>();
+
+    /** {@code non-null;} output offset of each distinct static values array */
+    private final HashMap<EncodedValue, Integer> staticValuesOffsets
+            = new HashMap<EncodedValue, Integer>();
+
     private final TableOfContents contentsOut;
 
-    private final IndexMap aIndexMap;
-    private final IndexMap bIndexMap;
-    private final InstructionTransformer aInstructionTransformer;
-    private final InstructionTransformer bInstructionTransformer;
+    /** {@code non-null;} maps from the indices of each input to the output */
+    private final IndexMap[] indexMaps;
+
+    private final InstructionTransformer[] instructionTransformers;
 
     /** minimum number of wasted bytes before it's worthwhile to compact the result */
     private int compactWasteThreshold = 1024 * 1024; // 1MiB
 
+    /** {@code >= 1;} number of threads to merge with */
+    private int numThreads = 1;
+
+    /** {@code null-ok;} worker threads while merging with more than one thread */
+    private ExecutorService executor;
+
     public DexMerger(DexBuffer dexA, DexBuffer dexB, CollisionPolicy collisionPolicy)
             throws IOException {
-        this(dexA, dexB, collisionPolicy, new WriterSizes(dexA, dexB));
+        this(new DexBuffer[] { dexA, dexB }, collisionPolicy);
+    }
+
+    /**
+     * Constructs an instance which merges any number of dex files in a
+     * single pass. With {@link CollisionPolicy#KEEP_FIRST}, a class defined
+     * by several inputs is taken from the earliest one.
+     *
+     * @param dexes {@code non-null;} the inputs, at least one
+     */
+    public DexMerger(DexBuffer[] dexes, CollisionPolicy collisionPolicy)
+            throws IOException {
+        this(dexes, collisionPolicy, new WriterSizes(dexes));
     }
 
-    private DexMerger(DexBuffer dexA, DexBuffer dexB, CollisionPolicy collisionPolicy,
+    private DexMerger(DexBuffer[] dexes, CollisionPolicy collisionPolicy,
             WriterSizes writerSizes) throws IOException {
-        this.dexA = dexA;
-        this.dexB = dexB;
+        if (dexes.length == 0) {
+            throw new IllegalArgumentException("dexes.length == 0");
+        }
+
+        this.dexes = dexes.clone();
         this.collisionPolicy = collisionPolicy;
         this.writerSizes = writerSizes;
 
-        TableOfContents aContents = dexA.getTableOfContents();
-        TableOfContents bContents = dexB.getTableOfContents();
-        aIndexMap = new IndexMap(dexOut, aContents);
-        bIndexMap = new IndexMap(dexOut, bContents);
-        aInstructionTransformer = new InstructionTransformer(aIndexMap);
-        bInstructionTransformer = new InstructionTransformer(bIndexMap);
+        indexMaps = new IndexMap[dexes.length];
+        instructionTransformers = new InstructionTransformer[dexes.length];
+        for (int i = 0; i < dexes.length; i++) {
+            indexMaps[i] = new IndexMap(dexOut, dexes[i].getTableOfContents());
+            instructionTransformers[i] = new InstructionTransformer(indexMaps[i]);
+        }
 
         headerOut = dexOut.appendSection(writerSizes.header, "header");
         idsDefsOut = dexOut.appendSection(writerSizes.idsDefs, "ids defs");
@@ -156,12 +211,25 @@ public final class DexMerger {
         this.compactWasteThreshold = compactWasteThreshold;
     }
 
+    /**
+     * Sets the number of threads to merge with. The output doesn't depend
+     * on it.
+     */
+    public void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads < 1");
+        }
+        this.numThreads = numThreads;
+    }
+
     private DexBuffer mergeDexBuffers() throws IOException {
         mergeStringIds();
         mergeTypeIds();
+        // field ids only need strings and types; read them in the meantime
+        IdMerger<FieldId> fieldIdMerger = newFieldIdMerger().prefetch();
         mergeTypeLists();
         mergeProtoIds();
-        mergeFieldIds();
+        fieldIdMerger.mergeSorted();
         mergeMethodIds();
         mergeAnnotations();
         unionAnnotationSetsAndDirectories();
@@ -182,6 +250,20 @@ public final class DexMerger {
     }
 
     public DexBuffer merge() throws IOException {
+        if (numThreads == 1) {
+            return merge0();
+        }
+
+        executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            return merge0();
+        } finally {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private DexBuffer merge0() throws IOException {
         long start = System.nanoTime();
         DexBuffer result = mergeDexBuffers();
 
@@ -194,7 +276,9 @@ public final class DexMerger {
         int wastedByteCount = writerSizes.size() - compactedSizes.size();
         if (wastedByteCount >  + compactWasteThreshold) {
             DexMerger compacter = new DexMerger(
-                    dexOut, new DexBuffer(), CollisionPolicy.FAIL, compactedSizes);
+                    new DexBuffer[] { dexOut }, CollisionPolicy.FAIL, compactedSizes);
+            compacter.numThreads = numThreads;
+            compacter.executor = executor;
             result = compacter.mergeDexBuffers();
             System.out.printf("Result compacted from %.1fKiB to %.1fKiB to save %.1fKiB%n",
                     dexOut.getLength() / 1024f,
@@ -203,88 +287,103 @@ public final class DexMerger {
         }
 
         long elapsed = System.nanoTime() - start;
-        System.out.printf("Merged dex A (%d defs/%.1fKiB) with dex B "
-                + "(%d defs/%.1fKiB). Result is %d defs/%.1fKiB. Took %.1fs%n",
-                dexA.getTableOfContents().classDefs.size,
-                dexA.getLength() / 1024f,
-                dexB.getTableOfContents().classDefs.size,
-                dexB.getLength() / 1024f,
-                result.getTableOfContents().classDefs.size,
-                result.getLength() / 1024f,
-                elapsed / 1000000000f);
+        if (dexes.length == 2) {
+            System.out.printf("Merged dex A (%d defs/%.1fKiB) with dex B "
+                    + "(%d defs/%.1fKiB). Result is %d defs/%.1fKiB. Took %.1fs%n",
+                    dexes[0].getTableOfContents().classDefs.size,
+                    dexes[0].getLength() / 1024f,
+                    dexes[1].getTableOfContents().classDefs.size,
+                    dexes[1].getLength() / 1024f,
+                    result.getTableOfContents().classDefs.size,
+                    result.getLength() / 1024f,
+                    elapsed / 1000000000f);
+        } else {
+            int defs = 0;
+            long length = 0;
+            for (DexBuffer dex : dexes) {
+                defs += dex.getTableOfContents().classDefs.size;
+                length += dex.getLength();
+            }
+            System.out.printf("Merged %d dex files (%d defs/%.1fKiB). "
+                    + "Result is %d defs/%.1fKiB. Took %.1fs%n",
+                    dexes.length,
+                    defs,
+                    length / 1024f,
+                    result.getTableOfContents().classDefs.size,
+                    result.getLength() / 1024f,
+                    elapsed / 1000000000f);
+        }
 
         return result;
     }
 
     /**
-     * Reads an IDs section of two dex files and writes an IDs section of a
-     * merged dex file. Populates maps from old to new indices in the process.
+     * Reads an IDs section of each input dex file and writes an IDs section
+     * of a merged dex file. Populates maps from old to new indices in the
+     * process.
      */
     abstract class IdMerger<T extends Comparable<T>> {
         private final DexBuffer.Section out;
 
+        /** {@code null-ok;} values of each input, once {@link #prefetch} is called */
+        private List<Future<List<UnsortedValue>>> prefetched;
+
         protected IdMerger(DexBuffer.Section out) {
             this.out = out;
         }
 
         /**
-         * Merges already-sorted sections, reading only two values into memory
-         * at a time.
+         * Starts reading the values of every input on worker threads. Does
+         * nothing when merging on a single thread.
+         *
+         * @return this instance
+         */
+        public final IdMerger<T> prefetch() {
+            if (executor != null && prefetched == null) {
+                prefetched = new ArrayList<Future<List<UnsortedValue>>>(dexes.length);
+                for (int i = 0; i < dexes.length; i++) {
+                    prefetched.add(submitReadValues(i));
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Merges already-sorted sections, reading only one value per input
+         * into memory at a time. When merging with several threads, the
+         * sections are instead read in full, concurrently.
          */
         public final void mergeSorted() {
-            TableOfContents.Section aSection = getSection(dexA.getTableOfContents());
-            TableOfContents.Section bSection = getSection(dexB.getTableOfContents());
+            prefetch();
             getSection(contentsOut).off = out.getPosition();
 
-            DexBuffer.Section inA = aSection.exists() ? dexA.open(aSection.off) : null;
-            DexBuffer.Section inB = bSection.exists() ? dexB.open(bSection.off) : null;
-            int aOffset = -1;
-            int bOffset = -1;
-            int aIndex = 0;
-            int bIndex = 0;
-            int outCount = 0;
-            T a = null;
-            T b = null;
-
-            while (true) {
-                if (a == null && aIndex < aSection.size) {
-                    aOffset = inA.getPosition();
-                    a = read(inA, aIndexMap, aIndex);
-                }
-                if (b == null && bIndex < bSection.size) {
-                    bOffset = inB.getPosition();
-                    b = read(inB, bIndexMap, bIndex);
-                }
-
-                // Write the smaller of a and b. If they're equal, write only once
-                boolean advanceA;
-                boolean advanceB;
-                if (a != null && b != null) {
-                    int compare = a.compareTo(b);
-                    advanceA = compare <= 0;
-                    advanceB = compare >= 0;
-                } else {
-                    advanceA = (a != null);
-                    advanceB = (b != null);
+            PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(dexes.length);
+            for (int i = 0; i < dexes.length; i++) {
+                Cursor cursor = new Cursor(i, values(i));
+                if (cursor.advance()) {
+                    cursors.add(cursor);
                 }
+            }
 
-                T toWrite = null;
-                if (advanceA) {
-                    toWrite = a;
-                    updateIndex(aOffset, aIndexMap, aIndex++, outCount);
-                    a = null;
-                    aOffset = -1;
-                }
-                if (advanceB) {
-                    toWrite = b;
-                    updateIndex(bOffset, bIndexMap, bIndex++, outCount);
-                    b = null;
-                    bOffset = -1;
+            List<Cursor> advanced = new ArrayList<Cursor>(dexes.length);
+            int outCount = 0;
+            while (!cursors.isEmpty()) {
+                // Write the smallest value only once, whichever inputs have it
+                UnsortedValue smallest = cursors.peek().current;
+                while (!cursors.isEmpty() && cursors.peek().current.compareTo(smallest) == 0) {
+                    Cursor cursor = cursors.poll();
+                    UnsortedValue value = cursor.current;
+                    updateIndex(value.offset, value.indexMap, value.index, outCount);
+                    advanced.add(cursor);
                 }
-                if (toWrite == null) {
-                    break; // advanceA == false && advanceB == false
+                for (Cursor cursor : advanced) {
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    }
                 }
-                write(toWrite);
+                advanced.clear();
+
+                write(smallest.value);
                 outCount++;
             }
 
@@ -296,21 +395,25 @@ public final class DexMerger {
          * sorting in memory.
          */
         public final void mergeUnsorted() {
+            prefetch();
             getSection(contentsOut).off = out.getPosition();
 
             List<UnsortedValue> all = new ArrayList<UnsortedValue>();
-            all.addAll(readUnsortedValues(dexA, aIndexMap));
-            all.addAll(readUnsortedValues(dexB, bIndexMap));
+            for (int i = 0; i < dexes.length; i++) {
+                for (Iterator<UnsortedValue> values = values(i); values.hasNext(); ) {
+                    all.add(values.next());
+                }
+            }
             Collections.sort(all);
 
             int outCount = 0;
             for (int i = 0; i < all.size(); ) {
                 UnsortedValue e1 = all.get(i++);
-                updateIndex(e1.offset, getIndexMap(e1.source), e1.index, outCount - 1);
+                updateIndex(e1.offset, e1.indexMap, e1.index, outCount - 1);
 
                 while (i < all.size() && e1.compareTo(all.get(i)) == 0) {
                     UnsortedValue e2 = all.get(i++);
-                    updateIndex(e2.offset, getIndexMap(e2.source), e2.index, outCount - 1);
+                    updateIndex(e2.offset, e2.indexMap, e2.index, outCount - 1);
                 }
 
                 write(e1.value);
@@ -320,20 +423,26 @@ public final class DexMerger {
             getSection(contentsOut).size = outCount;
         }
 
-        private List<UnsortedValue> readUnsortedValues(DexBuffer source, IndexMap indexMap) {
-            TableOfContents.Section section = getSection(source.getTableOfContents());
-            if (!section.exists()) {
-                return Collections.emptyList();
+        /**
+         * Returns the values of an input, either prefetched or read on demand.
+         */
+        private Iterator<UnsortedValue> values(int input) {
+            if (prefetched != null) {
+                return await(prefetched.get(input)).iterator();
             }
+            return new ValueReader(input);
+        }
 
-            List<UnsortedValue> result = new ArrayList<UnsortedValue>();
-            DexBuffer.Section in = source.open(section.off);
-            for (int i = 0; i < section.size; i++) {
-                int offset = in.getPosition();
-                T value = read(in, indexMap, 0);
-                result.add(new UnsortedValue(source, indexMap, value, i, offset));
-            }
-            return result;
+        private Future<List<UnsortedValue>> submitReadValues(final int input) {
+            return executor.submit(new Callable<List<UnsortedValue>>() {
+                public List<UnsortedValue> call() {
+                    List<UnsortedValue> result = new ArrayList<UnsortedValue>();
+                    for (ValueReader values = new ValueReader(input); values.hasNext(); ) {
+                        result.add(values.next());
+                    }
+                    return result;
+                }
+            });
         }
 
         abstract TableOfContents.Section getSection(TableOfContents tableOfContents);
@@ -341,6 +450,72 @@ public final class DexMerger {
         abstract void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex);
         abstract void write(T value);
 
+        /**
+         * Reads the values of an input section one at a time.
+         */
+        private final class ValueReader implements Iterator<UnsortedValue> {
+            private final DexBuffer source;
+            private final IndexMap indexMap;
+            private final DexBuffer.Section in;
+            private final int size;
+            private int index;
+
+            ValueReader(int input) {
+                this.source = dexes[input];
+                this.indexMap = indexMaps[input];
+                TableOfContents.Section section = getSection(source.getTableOfContents());
+                this.in = section.exists() ? source.open(section.off) : null;
+                this.size = section.exists() ? section.size : 0;
+            }
+
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            public UnsortedValue next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int offset = in.getPosition();
+                T value = read(in, indexMap, index);
+                return new UnsortedValue(source, indexMap, value, index++, offset);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        /**
+         * The current value of an input. Cursors are ordered by value, then
+         * by input, so that merging is deterministic.
+         */
+        private final class Cursor implements Comparable<Cursor> {
+            private final int input;
+            private final Iterator<UnsortedValue> values;
+            private UnsortedValue current;
+
+            Cursor(int input, Iterator<UnsortedValue> values) {
+                this.input = input;
+                this.values = values;
+            }
+
+            /**
+             * Moves to the next value.
+             *
+             * @return false if the input has no more values
+             */
+            boolean advance() {
+                current = values.hasNext() ? values.next() : null;
+                return current != null;
+            }
+
+            public int compareTo(Cursor cursor) {
+                int compare = current.compareTo(cursor.current);
+                return (compare != 0) ? compare : input - cursor.input;
+            }
+        }
+
         class UnsortedValue implements Comparable<UnsortedValue> {
             final DexBuffer source;
             final IndexMap indexMap;
@@ -362,31 +537,21 @@ public final class DexMerger {
         }
     }
 
-    private IndexMap getIndexMap(DexBuffer dexBuffer) {
-        if (dexBuffer == dexA) {
-            return aIndexMap;
-        } else if (dexBuffer == dexB) {
-            return bIndexMap;
-        } else {
-            throw new IllegalArgumentException();
-        }
-    }
-
     private void mergeStringIds() {
-        new IdMerger<String>(idsDefsOut) {
+        new IdMerger<StringData>(idsDefsOut) {
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
                 return tableOfContents.stringIds;
             }
 
-            @Override String read(DexBuffer.Section in, IndexMap indexMap, int index) {
-                return in.readString();
+            @Override StringData read(DexBuffer.Section in, IndexMap indexMap, int index) {
+                return in.readStringData();
             }
 
             @Override void updateIndex(int offset, IndexMap indexMap, int oldIndex, int newIndex) {
                 indexMap.stringIds[oldIndex] = newIndex;
             }
 
-            @Override void write(String value) {
+            @Override void write(StringData value) {
                 contentsOut.stringDatas.size++;
                 idsDefsOut.writeInt(stringDataOut.getPosition());
                 stringDataOut.writeStringData(value);
@@ -455,8 +620,8 @@ public final class DexMerger {
         }.mergeSorted();
     }
 
-    private void mergeFieldIds() {
-        new IdMerger<FieldId>(idsDefsOut) {
+    private IdMerger<FieldId> newFieldIdMerger() {
+        return new IdMerger<FieldId>(idsDefsOut) {
             @Override TableOfContents.Section getSection(TableOfContents tableOfContents) {
                 return tableOfContents.fieldIds;
             }
@@ -472,7 +637,7 @@ public final class DexMerger {
             @Override void write(FieldId value) {
                 value.writeTo(idsDefsOut);
             }
-        }.mergeSorted();
+        };
     }
 
     private void mergeMethodIds() {
@@ -520,10 +685,113 @@ public final class DexMerger {
         contentsOut.classDefs.off = idsDefsOut.getPosition();
         contentsOut.classDefs.size = types.length;
 
+        if (executor != null) {
+            transformClassDefsInParallel(types);
+            return;
+        }
+
         for (SortableType type : types) {
             DexBuffer in = type.getBuffer();
-            IndexMap indexMap = (in == dexA) ? aIndexMap : bIndexMap;
-            transformClassDef(in, type.getClassDef(), indexMap);
+            int input = type.getInput();
+            ClassDef classDef = type.getClassDef();
+            transformClassDef(in, classDef, indexMaps[input],
+                    transformInstructions(in, classDef, instructionTransformers[input]));
+        }
+    }
+
+    /**
+     * Writes the class defs in the given order, while worker threads
+     * transform the instructions of the classes that come next. At most
+     * two chunks per thread are transformed ahead of the writer.
+     */
+    private void transformClassDefsInParallel(SortableType[] types) {
+        LinkedList<Future<TransformedClass[]>> pending
+                = new LinkedList<Future<TransformedClass[]>>();
+        int next = 0;
+
+        for (int from = 0; from < types.length; from += CLASS_CHUNK_SIZE) {
+            while (next < types.length && pending.size() < 2 * numThreads) {
+                int to = Math.min(next + CLASS_CHUNK_SIZE, types.length);
+                pending.add(submitTransformInstructions(types, next, to));
+                next = to;
+            }
+
+            TransformedClass[] transformed = await(pending.removeFirst());
+            for (int i = 0; i < transformed.length; i++) {
+                SortableType type = types[from + i];
+                DexBuffer in = type.getBuffer();
+                transformClassDef(in, type.getClassDef(), indexMaps[type.getInput()],
+                        transformed[i]);
+            }
+        }
+    }
+
+    private Future<TransformedClass[]> submitTransformInstructions(
+            final SortableType[] types, final int from, final int to) {
+        return executor.submit(new Callable<TransformedClass[]>() {
+            public TransformedClass[] call() {
+                // transformers keep state, so each task uses its own
+                InstructionTransformer[] transformers
+                        = new InstructionTransformer[dexes.length];
+                TransformedClass[] result = new TransformedClass[to - from];
+                for (int i = from; i < to; i++) {
+                    DexBuffer in = types[i].getBuffer();
+                    int input = types[i].getInput();
+                    if (transformers[input] == null) {
+                        transformers[input] = new InstructionTransformer(indexMaps[input]);
+                    }
+                    result[i - from] = transformInstructions(in, types[i].getClassDef(),
+                            transformers[input]);
+                }
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Reads the class data and code of a class and transforms the
+     * instructions of its methods. This only reads state that is final once
+     * the ids are merged, so it may run on any thread.
+     *
+     * @return {@code null-ok;} the transformed class, or {@code null} if the
+     * class has no class data
+     */
+    private TransformedClass transformInstructions(DexBuffer in, ClassDef classDef,
+            InstructionTransformer transformer) {
+        if (classDef.getClassDataOffset() == 0) {
+            return null;
+        }
+
+        ClassData classData = in.readClassData(classDef);
+        List<Code> codes = new ArrayList<Code>();
+        for (ClassData.Method method : classData.allMethods()) {
+            if (method.getCodeOffset() != 0) {
+                codes.add(in.readCode(method));
+            }
+        }
+
+        short[][] instructions = new short[codes.size()][];
+        for (int i = 0; i < instructions.length; i++) {
+            instructions[i] = transformer.transform(codes.get(i).getInstructions());
+        }
+        return new TransformedClass(classData, codes.toArray(new Code[codes.size()]),
+                instructions);
+    }
+
+    private static <V> V await(Future<V> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DexException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new DexException(cause);
         }
     }
 
@@ -534,8 +802,9 @@ public final class DexMerger {
     private SortableType[] getSortedTypes() {
         // size is pessimistic; doesn't include arrays
         SortableType[] sortableTypes = new SortableType[contentsOut.typeIds.size];
-        readSortableTypes(sortableTypes, dexA, aIndexMap);
-        readSortableTypes(sortableTypes, dexB, bIndexMap);
+        for (int i = 0; i < dexes.length; i++) {
+            readSortableTypes(sortableTypes, dexes[i], i, indexMaps[i]);
+        }
 
         /*
          * Populate the depths of each sortable type. This makes D iterations
@@ -570,9 +839,9 @@ public final class DexMerger {
      * it later.
      */
     private void readSortableTypes(SortableType[] sortableTypes, DexBuffer buffer,
-            IndexMap indexMap) {
+            int input, IndexMap indexMap) {
         for (ClassDef classDef : buffer.classDefs()) {
-            SortableType sortableType = indexMap.adjust(new SortableType(buffer, classDef));
+            SortableType sortableType = indexMap.adjust(new SortableType(buffer, input, classDef));
             int t = sortableType.getTypeIndex();
             if (sortableTypes[t] == null) {
                 sortableTypes[t] = sortableType;
@@ -584,18 +853,41 @@ public final class DexMerger {
     }
 
     /**
-     * Copy annotation sets from each input to the output.
-     *
-     * TODO: this may write multiple copies of the same annotation set.
-     * We should shrink the output by merging rather than unioning
+     * Copy annotation sets from each input to the output. Sets and static
+     * values arrays that are equal once adjusted are written only once, as
+     * {@link com.android.dx.dex.file.DexFile} does; the annotations
+     * directories are still unioned.
      */
     private void unionAnnotationSetsAndDirectories() {
-        transformAnnotationSets(dexA, aIndexMap);
-        transformAnnotationSets(dexB, bIndexMap);
-        transformAnnotationDirectories(dexA, aIndexMap);
-        transformAnnotationDirectories(dexB, bIndexMap);
-        transformStaticValues(dexA, aIndexMap);
-        transformStaticValues(dexB, bIndexMap);
+        // static values are written to their own section; they don't depend
+        // on the annotation sets or directories
+        Future<?> staticValues = null;
+        if (executor != null) {
+            staticValues = executor.submit(new Runnable() {
+                public void run() {
+                    transformStaticValues();
+                }
+            });
+        }
+
+        for (int i = 0; i < dexes.length; i++) {
+            transformAnnotationSets(dexes[i], indexMaps[i]);
+        }
+        for (int i = 0; i < dexes.length; i++) {
+            transformAnnotationDirectories(dexes[i], indexMaps[i]);
+        }
+
+        if (staticValues != null) {
+            await(staticValues);
+        } else {
+            transformStaticValues();
+        }
+    }
+
+    private void transformStaticValues() {
+        for (int i = 0; i < dexes.length; i++) {
+            transformStaticValues(dexes[i], indexMaps[i]);
+        }
     }
 
     private void transformAnnotationSets(DexBuffer in, IndexMap indexMap) {
@@ -632,7 +924,8 @@ public final class DexMerger {
      * Reads a class_def_item beginning at {@code in} and writes the index and
      * data.
      */
-    private void transformClassDef(DexBuffer in, ClassDef classDef, IndexMap indexMap) {
+    private void transformClassDef(DexBuffer in, ClassDef classDef, IndexMap indexMap,
+            TransformedClass transformed) {
         idsDefsOut.assertFourByteAligned();
         idsDefsOut.writeInt(classDef.getTypeIndex());
         idsDefsOut.writeInt(classDef.getAccessFlags());
@@ -650,8 +943,7 @@ public final class DexMerger {
             idsDefsOut.writeInt(0);
         } else {
             idsDefsOut.writeInt(classDataOut.getPosition());
-            ClassData classData = in.readClassData(classDef);
-            transformClassData(in, classData, indexMap);
+            transformClassData(in, transformed, indexMap);
         }
 
         int staticValuesOff = classDef.getStaticValuesOffset();
@@ -721,21 +1013,36 @@ public final class DexMerger {
      * Transform all annotations on a single type, member or parameter.
      */
     private void transformAnnotationSet(IndexMap indexMap, DexBuffer.Section setIn) {
+        int offsetIn = setIn.getPosition();
+        int size = setIn.readInt();
+        IntList annotations = new IntList(size);
+        for (int j = 0; j < size; j++) {
+            annotations.add(indexMap.adjustAnnotation(setIn.readInt()));
+        }
+
+        Integer existing = annotationSetOffsets.get(annotations);
+        if (existing != null) {
+            indexMap.putAnnotationSetOffset(offsetIn, existing);
+            return;
+        }
+
         contentsOut.annotationSets.size++;
         annotationSetOut.assertFourByteAligned();
-        indexMap.putAnnotationSetOffset(setIn.getPosition(), annotationSetOut.getPosition());
+        int offsetOut = annotationSetOut.getPosition();
+        annotationSetOffsets.put(annotations, offsetOut);
+        indexMap.putAnnotationSetOffset(offsetIn, offsetOut);
 
-        int size = setIn.readInt();
         annotationSetOut.writeInt(size);
-
         for (int j = 0; j < size; j++) {
-            annotationSetOut.writeInt(indexMap.adjustAnnotation(setIn.readInt()));
+            annotationSetOut.writeInt(annotations.get(j));
         }
     }
 
-    private void transformClassData(DexBuffer in, ClassData classData, IndexMap indexMap) {
+    private void transformClassData(DexBuffer in, TransformedClass transformed,
+            IndexMap indexMap) {
         contentsOut.classDatas.size++;
 
+        ClassData classData = transformed.classData;
         ClassData.Field[] staticFields = classData.getStaticFields();
         ClassData.Field[] instanceFields = classData.getInstanceFields();
         ClassData.Method[] directMethods = classData.getDirectMethods();
@@ -748,8 +1055,8 @@ public final class DexMerger {
 
         transformFields(indexMap, staticFields);
         transformFields(indexMap, instanceFields);
-        transformMethods(in, indexMap, directMethods);
-        transformMethods(in, indexMap, virtualMethods);
+        int codeIndex = transformMethods(in, indexMap, directMethods, transformed, 0);
+        transformMethods(in, indexMap, virtualMethods, transformed, codeIndex);
     }
 
     private void transformFields(IndexMap indexMap, ClassData.Field[] fields) {
@@ -762,7 +1069,14 @@ public final class DexMerger {
         }
     }
 
-    private void transformMethods(DexBuffer in, IndexMap indexMap, ClassData.Method[] methods) {
+    /**
+     * Writes the given methods, taking their code from {@code transformed}
+     * starting at {@code codeIndex}.
+     *
+     * @return the index of the first code not written
+     */
+    private int transformMethods(DexBuffer in, IndexMap indexMap, ClassData.Method[] methods,
+            TransformedClass transformed, int codeIndex) {
         int lastOutMethodIndex = 0;
         for (ClassData.Method method : methods) {
             int outMethodIndex = indexMap.adjustMethod(method.getMethodIndex());
@@ -776,12 +1090,16 @@ public final class DexMerger {
             } else {
                 codeOut.alignToFourBytes();
                 classDataOut.writeUleb128(codeOut.getPosition());
-                transformCode(in, in.readCode(method), indexMap);
+                transformCode(in, transformed.codes[codeIndex],
+                        transformed.instructions[codeIndex], indexMap);
+                codeIndex++;
             }
         }
+        return codeIndex;
     }
 
-    private void transformCode(DexBuffer in, Code code, IndexMap indexMap) {
+    private void transformCode(DexBuffer in, Code code, short[] newInstructions,
+            IndexMap indexMap) {
         contentsOut.codes.size++;
         codeOut.assertFourByteAligned();
 
@@ -801,11 +1119,6 @@ public final class DexMerger {
             codeOut.writeInt(0);
         }
 
-        short[] instructions = code.getInstructions();
-        InstructionTransformer transformer = (in == dexA)
-                ? aInstructionTransformer
-                : bInstructionTransformer;
-        short[] newInstructions = transformer.transform(instructions);
         codeOut.writeInt(newInstructions.length);
         codeOut.write(newInstructions);
 
@@ -953,9 +1266,36 @@ public final class DexMerger {
     }
 
     private void transformStaticValues(DexBuffer.Section in, IndexMap indexMap) {
+        int offsetIn = in.getPosition();
+        EncodedValue adjusted = indexMap.adjustEncodedArray(in.readEncodedArray());
+
+        Integer existing = staticValuesOffsets.get(adjusted);
+        if (existing != null) {
+            indexMap.putStaticValuesOffset(offsetIn, existing);
+            return;
+        }
+
         contentsOut.encodedArrays.size++;
-        indexMap.putStaticValuesOffset(in.getPosition(), encodedArrayOut.getPosition());
-        indexMap.adjustEncodedArray(in.readEncodedArray()).writeTo(encodedArrayOut);
+        int offsetOut = encodedArrayOut.getPosition();
+        staticValuesOffsets.put(adjusted, offsetOut);
+        indexMap.putStaticValuesOffset(offsetIn, offsetOut);
+        adjusted.writeTo(encodedArrayOut);
+    }
+
+    /**
+     * The class data of a class, with the code of its methods and their
+     * transformed instructions in the order the methods are written.
+     */
+    private static final class TransformedClass {
+        private final ClassData classData;
+        private final Code[] codes;
+        private final short[][] instructions;
+
+        TransformedClass(ClassData classData, Code[] codes, short[][] instructions) {
+            this.classData = classData;
+            this.codes = codes;
+            this.instructions = instructions;
+        }
     }
 
     /**
@@ -985,11 +1325,12 @@ public final class DexMerger {
         private int annotation;
 
         /**
-         * Compute sizes for merging a and b.
+         * Compute sizes for merging the given dex files.
          */
-        public WriterSizes(DexBuffer a, DexBuffer b) {
-            plus(a.getTableOfContents(), false);
-            plus(b.getTableOfContents(), false);
+        public WriterSizes(DexBuffer[] dexes) {
+            for (DexBuffer dex : dexes) {
+                plus(dex.getTableOfContents(), false);
+            }
         }
 
         public WriterSizes(DexMerger dexMerger) {
@@ -1053,20 +1394,23 @@ public final class DexMerger {
     }
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
+        if (args.length < 3) {
             printUsage();
             return;
         }
 
-        DexBuffer dexA = new DexBuffer(new File(args[1]));
-        DexBuffer dexB = new DexBuffer(new File(args[2]));
-        DexBuffer merged = new DexMerger(dexA, dexB, CollisionPolicy.KEEP_FIRST).merge();
+        DexBuffer[] dexes = new DexBuffer[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            dexes[i - 1] = DexBuffer.map(new File(args[i]));
+        }
+        DexBuffer merged = new DexMerger(dexes, CollisionPolicy.KEEP_FIRST).merge();
         merged.writeTo(new File(args[0]));
     }
 
     private static void printUsage() {
-        System.out.println("Usage: DexMerger <out.dex> <a.dex> <b.dex>");
+        System.out.println("Usage: DexMerger <out.dex> <a.dex> <b.dex> [<c.dex>...]");
         System.out.println();
-        System.out.println("If both a and b define the same classes, a's copy will be used.");
+        System.out.println("If several inputs define the same classes, the copy of the");
+        System.out.println("earliest one will be used.");
     }
 }
@@ -28,9 +28,9 @@ import com.android.dx.io.ProtoId;
 import com.android.dx.util.ByteArrayAnnotatedOutput;
 import com.android.dx.util.ByteInput;
 import com.android.dx.util.ByteOutput;
+import com.android.dx.util.IntIntMap;
 import com.android.dx.util.Leb128Utils;
 import com.android.dx.util.Unsigned;
-import java.util.HashMap;
 
 /**
  * Maps the index offsets from one dex file to those in another. For example, if
@@ -44,11 +44,11 @@ public final class IndexMap {
     public final short[] protoIds;
     public final short[] fieldIds;
     public final short[] methodIds;
-    private final HashMap<Integer, Integer> typeListOffsets;
-    private final HashMap<Integer, Integer> annotationOffsets;
-    private final HashMap<Integer, Integer> annotationSetOffsets;
-    private final HashMap<Integer, Integer> annotationDirectoryOffsets;
-    private final HashMap<Integer, Integer> staticValuesOffsets;
+    private final IntIntMap typeListOffsets;
+    private final IntIntMap annotationOffsets;
+    private final IntIntMap annotationSetOffsets;
+    private final IntIntMap annotationDirectoryOffsets;
+    private final IntIntMap staticValuesOffsets;
 
     public IndexMap(DexBuffer target, TableOfContents tableOfContents) {
         this.target = target;
@@ -57,11 +57,11 @@ public final class IndexMap {
         this.protoIds = new short[tableOfContents.protoIds.size];
         this.fieldIds = new short[tableOfContents.fieldIds.size];
         this.methodIds = new short[tableOfContents.methodIds.size];
-        this.typeListOffsets = new HashMap<Integer, Integer>();
-        this.annotationOffsets = new HashMap<Integer, Integer>();
-        this.annotationSetOffsets = new HashMap<Integer, Integer>();
-        this.annotationDirectoryOffsets = new HashMap<Integer, Integer>();
-        this.staticValuesOffsets = new HashMap<Integer, Integer>();
+        this.typeListOffsets = new IntIntMap();
+        this.annotationOffsets = new IntIntMap();
+        this.annotationSetOffsets = new IntIntMap();
+        this.annotationDirectoryOffsets = new IntIntMap();
+        this.staticValuesOffsets = new IntIntMap();
 
         /*
          * A type list, annotation set, annotation directory, or static value at
@@ -190,7 +190,8 @@ public final class IndexMap {
     }
 
     public SortableType adjust(SortableType sortableType) {
-        return new SortableType(sortableType.getBuffer(), adjust(sortableType.getClassDef()));
+        return new SortableType(sortableType.getBuffer(), sortableType.getInput(),
+                adjust(sortableType.getClassDef()));
     }
 
     public EncodedValue adjustEncodedValue(EncodedValue encodedValue) {
@@ -44,11 +44,16 @@ final class SortableType {
     };
 
     private final DexBuffer buffer;
+    private final int input;
     private ClassDef classDef;
     private int depth = -1;
 
-    public SortableType(DexBuffer buffer, ClassDef classDef) {
+    /**
+     * @param input the index of {@code buffer} among the merger's inputs
+     */
+    public SortableType(DexBuffer buffer, int input, ClassDef classDef) {
         this.buffer = buffer;
+        this.input = input;
         this.classDef = classDef;
     }
 
@@ -56,6 +61,10 @@ final class SortableType {
         return buffer;
     }
 
+    public int getInput() {
+        return input;
+    }
+
     public ClassDef getClassDef() {
         return classDef;
     }
@@ -17,15 +17,15 @@
 package com.android.dx.rop.cst;
 
 import com.android.dx.rop.type.Type;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Constants that represent an arbitrary type (reference or primitive).
  */
 public final class CstType extends TypedConstant {
     /** {@code non-null;} map of interned types */
-    private static final HashMap<Type, CstType> interns =
-        new HashMap<Type, CstType>(100);
+    private static final ConcurrentHashMap<Type, CstType> interns =
+        new ConcurrentHashMap<Type, CstType>(100);
 
     /** {@code non-null;} instance corresponding to the class {@code Object} */
     public static final CstType OBJECT = intern(Type.OBJECT);
@@ -122,16 +122,17 @@ public final class CstType extends TypedConstant {
      * @return {@code non-null;} an appropriately-constructed instance
      */
     public static CstType intern(Type type) {
-        synchronized (interns) {
-            CstType cst = interns.get(type);
+        CstType cst = interns.get(type);
 
-            if (cst == null) {
-                cst = new CstType(type);
-                interns.put(type, cst);
+        if (cst == null) {
+            cst = new CstType(type);
+            CstType already = interns.putIfAbsent(type, cst);
+            if (already != null) {
+                return already;
             }
-
-            return cst;
         }
+
+        return cst;
     }
 
     /**
@@ -16,7 +16,7 @@
 
 package com.android.dx.rop.type;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Representation of a method descriptor. Instances of this class are
@@ -24,9 +24,12 @@ import java.util.HashMap;
  * using {@code ==}.
  */
 public final class Prototype implements Comparable<Prototype> {
-    /** {@code non-null;} intern table mapping string descriptors to instances */
-    private static final HashMap<String, Prototype> internTable =
-        new HashMap<String, Prototype>(500);
+    /**
+     * {@code non-null;} intern table mapping string descriptors to
+     * instances; lookups don't lock
+     */
+    private static final ConcurrentHashMap<String, Prototype> internTable =
+        new ConcurrentHashMap<String, Prototype>(500);
 
     /** {@code non-null;} method descriptor */
     private final String descriptor;
@@ -55,10 +58,7 @@ public final class Prototype implements Comparable<Prototype> {
             throw new NullPointerException("descriptor == null");
         }
 
-        Prototype result;
-        synchronized (internTable) {
-            result = internTable.get(descriptor);
-        }
+        Prototype result = internTable.get(descriptor);
         if (result != null) {
             return result;
         }
@@ -387,14 +387,7 @@ public final class Prototype implements Comparable<Prototype> {
      * @return {@code non-null;} the actual interned object
      */
     private static Prototype putIntern(Prototype desc) {
-        synchronized (internTable) {
-            String descriptor = desc.getDescriptor();
-            Prototype already = internTable.get(descriptor);
-            if (already != null) {
-                return already;
-            }
-            internTable.put(descriptor, desc);
-            return desc;
-        }
+        Prototype already = internTable.putIfAbsent(desc.getDescriptor(), desc);
+        return (already != null) ? already : desc;
     }
 }
@@ -80,7 +80,7 @@ public class LiteralOpUpgrader {
      * Run the literal op upgrader
      */
     private void run() {
-        final TranslationAdvice advice = Optimizer.getAdvice();
+        final TranslationAdvice advice = ssaMeth.getOptimizer().getAdvice();
 
         ssaMeth.forEachInsn(new SsaInsn.Visitor() {
             public void visitMoveInsn(NormalSsaInsn insn) {
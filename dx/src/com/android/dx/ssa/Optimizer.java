@@ -16,21 +16,37 @@
 
 package com.android.dx.ssa;
 
+import com.android.dx.rop.code.BasicBlock;
+import com.android.dx.rop.code.BasicBlockList;
 import com.android.dx.rop.code.RopMethod;
 import com.android.dx.rop.code.TranslationAdvice;
 import com.android.dx.ssa.back.LivenessAnalyzer;
 import com.android.dx.ssa.back.SsaToRop;
+import com.android.dx.util.Metrics;
 
 import java.util.EnumSet;
 
 /**
  * Runs a method through the SSA form conversion, any optimization algorithms,
  * and returns it to rop form.
+ *
+ * <p>An instance holds the settings of an optimization run. Instances are
+ * immutable, and the settings are reached through the {@link SsaMethod}
+ * being optimized, so any number of methods may be optimized concurrently,
+ * with the same or different settings.</p>
  */
 public class Optimizer {
-    private static boolean preserveLocals = true;
+    /** maximum number of rop insns in a method considered trivial */
+    private static final int MAX_TRIVIAL_INSNS = 16;
 
-    private static TranslationAdvice advice;
+    /**
+     * true if local variable information should be preserved, even
+     * at code size/register size cost
+     */
+    private final boolean preserveLocals;
+
+    /** {@code non-null;} translation advice */
+    private final TranslationAdvice advice;
 
     /** optional optimizer steps */
     public enum OptionalStep {
@@ -38,21 +54,74 @@ public class Optimizer {
             ESCAPE_ANALYSIS
     }
 
+    /**
+     * Constructs an instance.
+     *
+     * @param preserveLocals true if local variable info should be preserved,
+     * at the cost of some registers and insns
+     * @param advice {@code non-null;} translation advice
+     */
+    public Optimizer(boolean preserveLocals, TranslationAdvice advice) {
+        if (advice == null) {
+            throw new NullPointerException("advice == null");
+        }
+
+        this.preserveLocals = preserveLocals;
+        this.advice = advice;
+    }
+
     /**
      * @return true if local variable information should be preserved, even
      * at code size/register size cost
      */
-    public static boolean getPreserveLocals() {
+    public boolean getPreserveLocals() {
         return preserveLocals;
     }
 
     /**
      * @return {@code non-null;} translation advice
      */
-    public static TranslationAdvice getAdvice() {
+    public TranslationAdvice getAdvice() {
         return advice;
     }
 
+    /**
+     * Returns whether a method is trivial: its code is short and
+     * straight-line, catches no exceptions, and already fits in the number
+     * of registers the advice considers optimal. Such methods are mostly
+     * accessors and delegates, for which the round trip through SSA form
+     * costs far more than it saves, so callers may choose to translate
+     * them unoptimized.
+     *
+     * @param rmeth {@code non-null;} method as it comes out of the
+     * {@link com.android.dx.cf.code.Ropper}
+     * @return whether the method is trivial
+     */
+    public boolean isTrivial(RopMethod rmeth) {
+        BasicBlockList blocks = rmeth.getBlocks();
+
+        if (blocks.getRegCount() > advice.getMaxOptimalRegisterCount()) {
+            return false;
+        }
+
+        int insnCount = 0;
+        int sz = blocks.size();
+        for (int i = 0; i < sz; i++) {
+            BasicBlock block = blocks.get(i);
+            if (block.getSuccessors().size() > 1
+                    || block.hasExceptionHandlers()) {
+                return false;
+            }
+
+            insnCount += block.getInsns().size();
+            if (insnCount > MAX_TRIVIAL_INSNS) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
     /**
      * Runs optimization algorthims over this method, and returns a new
      * instance of RopMethod with the changes.
@@ -70,8 +139,8 @@ public class Optimizer {
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice) {
 
-        return optimize(rmeth, paramWidth, isStatic, inPreserveLocals, inAdvice,
-                EnumSet.allOf(OptionalStep.class));
+        return new Optimizer(inPreserveLocals, inAdvice).optimize(rmeth,
+                paramWidth, isStatic);
     }
 
     /**
@@ -91,19 +160,59 @@ public class Optimizer {
     public static RopMethod optimize(RopMethod rmeth, int paramWidth,
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice, EnumSet<OptionalStep> steps) {
+
+        return new Optimizer(inPreserveLocals, inAdvice).optimize(rmeth,
+                paramWidth, isStatic, steps);
+    }
+
+    /**
+     * Runs all the optimization algorthims over this method, and returns
+     * a new instance of RopMethod with the changes.
+     *
+     * @param rmeth method to process
+     * @param paramWidth the total width, in register-units, of this method's
+     * parameters
+     * @param isStatic true if this method has no 'this' pointer argument.
+     * @return optimized method
+     */
+    public RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic) {
+        return optimize(rmeth, paramWidth, isStatic,
+                EnumSet.allOf(OptionalStep.class));
+    }
+
+    /**
+     * Runs optimization algorthims over this method, and returns a new
+     * instance of RopMethod with the changes.
+     *
+     * @param rmeth method to process
+     * @param paramWidth the total width, in register-units, of this method's
+     * parameters
+     * @param isStatic true if this method has no 'this' pointer argument.
+     * @param steps set of optional optimization steps to run; not modified
+     * @return optimized method
+     */
+    public RopMethod optimize(RopMethod rmeth, int paramWidth,
+            boolean isStatic, EnumSet<OptionalStep> steps) {
         SsaMethod ssaMeth = null;
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
+        // runSsaFormSteps() edits the set, which may be shared
+        steps = steps.clone();
 
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        Metrics.Timer timer = Metrics.start("ssa-convert");
+        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic,
+                this);
+        timer.end();
         runSsaFormSteps(ssaMeth, steps);
 
+        timer = Metrics.start("ssa-to-rop");
         RopMethod resultMeth = SsaToRop.convertToRopMethod(ssaMeth, false);
+        timer.end();
 
         if (resultMeth.getBlocks().getRegCount()
                 > advice.getMaxOptimalRegisterCount()) {
             // Try to see if we can squeeze it under the register count bar
+            Metrics.count("methods.minimize-registers");
             resultMeth = optimizeMinimizeRegisters(rmeth, paramWidth, isStatic,
                     steps);
         }
@@ -125,14 +234,16 @@ public class Optimizer {
      * @param steps set of optional optimization steps to run
      * @return optimized method
      */
-    private static RopMethod optimizeMinimizeRegisters(RopMethod rmeth,
+    private RopMethod optimizeMinimizeRegisters(RopMethod rmeth,
             int paramWidth, boolean isStatic,
             EnumSet<OptionalStep> steps) {
         SsaMethod ssaMeth;
         RopMethod resultMeth;
 
+        Metrics.Timer timer = Metrics.start("ssa-convert");
         ssaMeth = SsaConverter.convertToSsaMethod(
-                rmeth, paramWidth, isStatic);
+                rmeth, paramWidth, isStatic, this);
+        timer.end();
 
         EnumSet<OptionalStep> newSteps = steps.clone();
 
@@ -144,27 +255,36 @@ public class Optimizer {
 
         runSsaFormSteps(ssaMeth, newSteps);
 
+        timer = Metrics.start("ssa-to-rop");
         resultMeth = SsaToRop.convertToRopMethod(ssaMeth, true);
+        timer.end();
         return resultMeth;
     }
 
     private static void runSsaFormSteps(SsaMethod ssaMeth,
             EnumSet<OptionalStep> steps) {
         boolean needsDeadCodeRemover = true;
+        Metrics.Timer timer;
 
         if (steps.contains(OptionalStep.MOVE_PARAM_COMBINER)) {
+            timer = Metrics.start("move-param-combiner");
             MoveParamCombiner.process(ssaMeth);
+            timer.end();
         }
 
         if (steps.contains(OptionalStep.SCCP)) {
+            timer = Metrics.start("sccp");
             SCCP.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            timer.end();
+            removeDeadCode(ssaMeth);
             needsDeadCodeRemover = false;
         }
 
         if (steps.contains(OptionalStep.LITERAL_UPGRADE)) {
+            timer = Metrics.start("literal-upgrade");
             LiteralOpUpgrader.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            timer.end();
+            removeDeadCode(ssaMeth);
             needsDeadCodeRemover = false;
         }
 
@@ -173,53 +293,59 @@ public class Optimizer {
          */
         steps.remove(OptionalStep.ESCAPE_ANALYSIS);
         if (steps.contains(OptionalStep.ESCAPE_ANALYSIS)) {
+            timer = Metrics.start("escape-analysis");
             EscapeAnalysis.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            timer.end();
+            removeDeadCode(ssaMeth);
             needsDeadCodeRemover = false;
         }
 
         if (steps.contains(OptionalStep.CONST_COLLECTOR)) {
+            timer = Metrics.start("const-collector");
             ConstCollector.process(ssaMeth);
-            DeadCodeRemover.process(ssaMeth);
+            timer.end();
+            removeDeadCode(ssaMeth);
             needsDeadCodeRemover = false;
         }
 
         // dead code remover must be run before phi type resolver
         if (needsDeadCodeRemover) {
-            DeadCodeRemover.process(ssaMeth);
+            removeDeadCode(ssaMeth);
         }
 
+        timer = Metrics.start("phi-type-resolver");
         PhiTypeResolver.process(ssaMeth);
+        timer.end();
+    }
+
+    private static void removeDeadCode(SsaMethod ssaMeth) {
+        Metrics.Timer timer = Metrics.start("dead-code-remover");
+        DeadCodeRemover.process(ssaMeth);
+        timer.end();
     }
 
     public static SsaMethod debugEdgeSplit(RopMethod rmeth, int paramWidth,
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice) {
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.testEdgeSplit(rmeth, paramWidth, isStatic);
+        return SsaConverter.testEdgeSplit(rmeth, paramWidth, isStatic,
+                new Optimizer(inPreserveLocals, inAdvice));
     }
 
     public static SsaMethod debugPhiPlacement(RopMethod rmeth, int paramWidth,
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice) {
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.testPhiPlacement(rmeth, paramWidth, isStatic);
+        return SsaConverter.testPhiPlacement(rmeth, paramWidth, isStatic,
+                new Optimizer(inPreserveLocals, inAdvice));
     }
 
     public static SsaMethod debugRenaming(RopMethod rmeth, int paramWidth,
             boolean isStatic, boolean inPreserveLocals,
             TranslationAdvice inAdvice) {
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        return SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        return SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic,
+                new Optimizer(inPreserveLocals, inAdvice));
     }
 
     public static SsaMethod debugDeadCodeRemover(RopMethod rmeth,
@@ -228,10 +354,8 @@ public class Optimizer {
 
         SsaMethod ssaMeth;
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic,
+                new Optimizer(inPreserveLocals, inAdvice));
         DeadCodeRemover.process(ssaMeth);
 
         return ssaMeth;
@@ -243,10 +367,8 @@ public class Optimizer {
 
         SsaMethod ssaMeth;
 
-        preserveLocals = inPreserveLocals;
-        advice = inAdvice;
-
-        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic);
+        ssaMeth = SsaConverter.convertToSsaMethod(rmeth, paramWidth, isStatic,
+                new Optimizer(inPreserveLocals, inAdvice));
 
         runSsaFormSteps(ssaMeth, steps);
 
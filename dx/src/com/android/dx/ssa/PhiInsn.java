@@ -314,7 +314,8 @@ public final class PhiInsn extends SsaInsn {
     /** {@inheritDoc} */
     @Override
     public boolean hasSideEffect() {
-        return Optimizer.getPreserveLocals() && getLocalAssignment() != null;
+        return getBlock().getParent().getOptimizer().getPreserveLocals()
+                && getLocalAssignment() != null;
     }
 
     /** {@inheritDoc} */
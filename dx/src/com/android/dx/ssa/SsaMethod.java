@@ -69,6 +69,9 @@ public final class SsaMethod {
     /** true if this method has no {@code this} pointer argument */
     private final boolean isStatic;
 
+    /** {@code non-null;} settings of the optimizer working on this method */
+    private final Optimizer optimizer;
+
     /**
      * indexed by register: the insn where said register is defined or null
      * if undefined. null until (lazily) created.
@@ -96,10 +99,12 @@ public final class SsaMethod {
      * method's parameters
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
+     * @param optimizer {@code non-null;} settings of the optimizer working
+     * on the method
      */
     public static SsaMethod newFromRopMethod(RopMethod ropMethod,
-            int paramWidth, boolean isStatic) {
-        SsaMethod result = new SsaMethod(ropMethod, paramWidth, isStatic);
+            int paramWidth, boolean isStatic, Optimizer optimizer) {
+        SsaMethod result = new SsaMethod(ropMethod, paramWidth, isStatic, optimizer);
 
         result.convertRopToSsaBlocks(ropMethod);
 
@@ -115,10 +120,18 @@ public final class SsaMethod {
      * method's parameters
      * @param isStatic {@code true} if this method has no {@code this}
      * pointer argument
+     * @param optimizer {@code non-null;} settings of the optimizer working
+     * on this method
      */
-    private SsaMethod(RopMethod ropMethod, int paramWidth, boolean isStatic) {
+    private SsaMethod(RopMethod ropMethod, int paramWidth, boolean isStatic,
+            Optimizer optimizer) {
+        if (optimizer == null) {
+            throw new NullPointerException("optimizer == null");
+        }
+
         this.paramWidth = paramWidth;
         this.isStatic = isStatic;
+        this.optimizer = optimizer;
         this.backMode = false;
         this.maxLabel = ropMethod.getBlocks().getMaxLabel();
         this.registerCount = ropMethod.getBlocks().getRegCount();
@@ -309,6 +322,15 @@ public final class SsaMethod {
         return isStatic;
     }
 
+    /**
+     * Gets the settings of the optimizer working on this method.
+     *
+     * @return {@code non-null;} the optimizer
+     */
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
     /**
      * Borrows a register to use as a temp. Used in the phi removal process.
      * Call returnSpareRegisters() when done.
@@ -536,7 +536,7 @@ public class SsaRenamer implements Runnable {
                     = RegisterSpec.makeLocalOptional(
                         ssaSourceReg, ropResult.getType(), newLocal);
 
-            if (!Optimizer.getPreserveLocals() || (onlyOneAssociatedLocal
+            if (!ssaMeth.getOptimizer().getPreserveLocals() || (onlyOneAssociatedLocal
                     && equalsHandlesNulls(newLocal, sourceLocal)) &&
                     threshold == 0) {
                 /*
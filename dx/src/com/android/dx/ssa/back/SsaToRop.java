@@ -32,6 +32,7 @@ import com.android.dx.ssa.SsaInsn;
 import com.android.dx.ssa.SsaMethod;
 import com.android.dx.util.Hex;
 import com.android.dx.util.IntList;
+import com.android.dx.util.Metrics;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -102,7 +103,9 @@ public class SsaToRop {
             new FirstFitLocalCombiningAllocator(ssaMeth, interference,
                     minimizeRegisters);
 
+        Metrics.Timer timer = Metrics.start("register-allocation");
         RegisterMapper mapper = allocator.allocateRegisters();
+        timer.end();
 
         if (DEBUG) {
             System.out.println("Printing reg map");
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * Implementation of {@link AnnotatedOutput} which streams the written data
+ * to a {@link FileChannel} through a small buffer, so that the whole output
+ * never has to be held in memory. Instances never keep annotations.
+ *
+ * <p>Optionally, a digest and a checksum can be fed with every byte written
+ * from a given offset on, while the data passes through.</p>
+ *
+ * <p><b>Note:</b> As per the {@link Output} interface, multi-byte
+ * writes all use little-endian order.</p>
+ */
+public final class FileChannelOutput implements AnnotatedOutput {
+    /** size of the write buffer */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** {@code non-null;} where to write to */
+    private final FileChannel channel;
+
+    /** file position corresponding to cursor {@code 0} */
+    private final long base;
+
+    /** {@code non-null;} bytes written but not yet flushed */
+    private final byte[] buffer;
+
+    /** {@code >= 0;} number of valid bytes in {@link #buffer} */
+    private int buffered;
+
+    /** {@code >= 0;} cursor of the first byte in {@link #buffer} */
+    private int flushed;
+
+    /** {@code null-ok;} digest to feed, if any */
+    private MessageDigest digest;
+
+    /** {@code >= 0;} cursor from which {@link #digest} is fed */
+    private int digestStart;
+
+    /** {@code null-ok;} checksum to feed, if any */
+    private Checksum checksum;
+
+    /** {@code >= 0;} cursor from which {@link #checksum} is fed */
+    private int checksumStart;
+
+    /**
+     * Constructs an instance which writes from the current position of
+     * the given channel on.
+     *
+     * @param channel {@code non-null;} where to write to
+     */
+    public FileChannelOutput(FileChannel channel) throws IOException {
+        if (channel == null) {
+            throw new NullPointerException("channel == null");
+        }
+
+        this.channel = channel;
+        this.base = channel.position();
+        this.buffer = new byte[BUFFER_SIZE];
+        this.buffered = 0;
+        this.flushed = 0;
+    }
+
+    /**
+     * Gets the file position corresponding to cursor {@code 0}.
+     *
+     * @return the position
+     */
+    public long getBase() {
+        return base;
+    }
+
+    /**
+     * Sets a digest to be updated with every byte written at or after
+     * the given cursor. Must be called before anything is written there.
+     *
+     * @param digest {@code non-null;} the digest
+     * @param start {@code >= 0;} the first cursor to digest
+     */
+    public void setDigest(MessageDigest digest, int start) {
+        this.digest = digest;
+        this.digestStart = start;
+    }
+
+    /**
+     * Sets a checksum to be updated with every byte written at or after
+     * the given cursor. Must be called before anything is written there.
+     *
+     * @param checksum {@code non-null;} the checksum
+     * @param start {@code >= 0;} the first cursor to checksum
+     */
+    public void setChecksum(Checksum checksum, int start) {
+        this.checksum = checksum;
+        this.checksumStart = start;
+    }
+
+    /**
+     * Writes all the buffered bytes to the channel.
+     */
+    public void flush() throws IOException {
+        if (buffered == 0) {
+            return;
+        }
+
+        if (digest != null) {
+            int skip = Math.max(0, digestStart - flushed);
+            if (skip < buffered) {
+                digest.update(buffer, skip, buffered - skip);
+            }
+        }
+
+        if (checksum != null) {
+            int skip = Math.max(0, checksumStart - flushed);
+            if (skip < buffered) {
+                checksum.update(buffer, skip, buffered - skip);
+            }
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(buffer, 0, buffered);
+        while (bb.hasRemaining()) {
+            channel.write(bb);
+        }
+
+        flushed += buffered;
+        buffered = 0;
+    }
+
+    /**
+     * Writes bytes at the given cursor, which must have already been
+     * flushed, without moving the cursor. The bytes don't go through the
+     * digest or checksum.
+     *
+     * @param cursor {@code >= 0;} where to write
+     * @param bytes {@code non-null;} what to write
+     */
+    public void patch(int cursor, byte[] bytes) throws IOException {
+        if (cursor + bytes.length > flushed) {
+            throw new IllegalStateException("patching unflushed bytes");
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap(bytes);
+        long position = base + cursor;
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    /**
+     * Makes room for at least one byte in the buffer.
+     */
+    private void ensureRoom() {
+        if (buffered == buffer.length) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                throw new ExceptionWithContext(ex);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getCursor() {
+        return flushed + buffered;
+    }
+
+    /** {@inheritDoc} */
+    public void assertCursor(int expectedCursor) {
+        if (getCursor() != expectedCursor) {
+            throw new ExceptionWithContext("expected cursor " +
+                    expectedCursor + "; actual value: " + getCursor());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void writeByte(int value) {
+        ensureRoom();
+        buffer[buffered++] = (byte) value;
+    }
+
+    /** {@inheritDoc} */
+    public void writeShort(int value) {
+        writeByte(value);
+        writeByte(value >> 8);
+    }
+
+    /** {@inheritDoc} */
+    public void writeInt(int value) {
+        writeByte(value);
+        writeByte(value >> 8);
+        writeByte(value >> 16);
+        writeByte(value >> 24);
+    }
+
+    /** {@inheritDoc} */
+    public void writeLong(long value) {
+        writeInt((int) value);
+        writeInt((int) (value >> 32));
+    }
+
+    /** {@inheritDoc} */
+    public int writeUleb128(int value) {
+        int cursorBefore = getCursor();
+        Leb128Utils.writeUnsignedLeb128(this, value);
+        return getCursor() - cursorBefore;
+    }
+
+    /** {@inheritDoc} */
+    public int writeSleb128(int value) {
+        int cursorBefore = getCursor();
+        Leb128Utils.writeSignedLeb128(this, value);
+        return getCursor() - cursorBefore;
+    }
+
+    /** {@inheritDoc} */
+    public void write(ByteArray bytes) {
+        int blen = bytes.size();
+
+        if (blen > buffer.length - buffered) {
+            byte[] copy = new byte[blen];
+            bytes.getBytes(copy, 0);
+            write(copy, 0, blen);
+            return;
+        }
+
+        bytes.getBytes(buffer, buffered);
+        buffered += blen;
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] bytes, int offset, int length) {
+        // twos-complement math trick: ((x < 0) || (y < 0)) <=> ((x|y) < 0)
+        if (((offset | length) < 0) || (offset + length > bytes.length)) {
+            throw new IndexOutOfBoundsException("bytes.length " +
+                                                bytes.length + "; " +
+                                                offset + "..!" +
+                                                (offset + length));
+        }
+
+        while (length > 0) {
+            ensureRoom();
+            int count = Math.min(length, buffer.length - buffered);
+            System.arraycopy(bytes, offset, buffer, buffered, count);
+            buffered += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /** {@inheritDoc} */
+    public void writeZeroes(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("count < 0");
+        }
+
+        while (count > 0) {
+            ensureRoom();
+            int n = Math.min(count, buffer.length - buffered);
+            for (int i = 0; i < n; i++) {
+                buffer[buffered++] = 0;
+            }
+            count -= n;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void alignTo(int alignment) {
+        int mask = alignment - 1;
+
+        if ((alignment < 0) || ((mask & alignment) != 0)) {
+            throw new IllegalArgumentException("bogus alignment");
+        }
+
+        int cursor = getCursor();
+        writeZeroes(((cursor + mask) & ~mask) - cursor);
+    }
+
+    /** {@inheritDoc} */
+    public boolean annotates() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public boolean isVerbose() {
+        return false;
+    }
+
+    /** {@inheritDoc} */
+    public void annotate(String msg) {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    public void annotate(int amt, String msg) {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    public void endAnnotation() {
+        // This space intentionally left blank.
+    }
+
+    /** {@inheritDoc} */
+    public int getAnnotationWidth() {
+        return 0;
+    }
+}
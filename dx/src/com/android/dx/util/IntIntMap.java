@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+/**
+ * Map from {@code int} to {@code int}, which stores its entries in two
+ * arrays rather than in one object per entry, and never boxes keys or
+ * values. Not thread-safe.
+ */
+public final class IntIntMap {
+    /** initial number of slots; must be a power of two */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * {@code non-null;} the keys; slots holding {@code 0} are empty,
+     * except that key {@code 0} is kept in {@link #zeroValue}
+     */
+    private int[] keys;
+
+    /** {@code non-null;} the values, parallel to {@link #keys} */
+    private int[] values;
+
+    /** {@code >= 0;} number of entries, not counting key {@code 0} */
+    private int size;
+
+    /** whether the map contains key {@code 0} */
+    private boolean hasZeroKey;
+
+    /** value of key {@code 0}, if {@link #hasZeroKey} */
+    private int zeroValue;
+
+    /**
+     * Constructs an empty instance.
+     */
+    public IntIntMap() {
+        keys = new int[INITIAL_CAPACITY];
+        values = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return {@code >= 0;} the number of entries
+     */
+    public int size() {
+        return hasZeroKey ? size + 1 : size;
+    }
+
+    /**
+     * Maps a key to a value, replacing any previous value.
+     *
+     * @param key the key
+     * @param value the value
+     */
+    public void put(int key, int value) {
+        if (key == 0) {
+            hasZeroKey = true;
+            zeroValue = value;
+            return;
+        }
+
+        int slot = find(keys, key);
+        if (keys[slot] == 0) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = find(keys, key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Gets whether a key is in the map.
+     *
+     * @param key the key
+     * @return whether the key is mapped to a value
+     */
+    public boolean containsKey(int key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        return keys[find(keys, key)] != 0;
+    }
+
+    /**
+     * Gets the value of a key, which must be in the map.
+     *
+     * @param key the key
+     * @return the value
+     * @throws IllegalArgumentException if the key isn't in the map
+     */
+    public int get(int key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                throw new IllegalArgumentException("no such key: 0");
+            }
+            return zeroValue;
+        }
+
+        int slot = find(keys, key);
+        if (keys[slot] == 0) {
+            throw new IllegalArgumentException("no such key: " + key);
+        }
+        return values[slot];
+    }
+
+    /**
+     * Gets the value of a key, or a default if the key isn't in the map.
+     *
+     * @param key the key
+     * @param defaultValue the value to return if the key isn't in the map
+     * @return the value
+     */
+    public int get(int key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : defaultValue;
+        }
+
+        int slot = find(keys, key);
+        return (keys[slot] == 0) ? defaultValue : values[slot];
+    }
+
+    /**
+     * Doubles the number of slots.
+     */
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            int key = oldKeys[i];
+            if (key != 0) {
+                int slot = find(keys, key);
+                keys[slot] = key;
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it would go.
+     *
+     * @param keys {@code non-null;} the keys, with at least one empty slot
+     * @param key {@code != 0;} the key
+     * @return the slot
+     */
+    private static int find(int[] keys, int key) {
+        int mask = keys.length - 1;
+        int hash = key * 0x9e3779b9;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dx.util;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Static methods for collecting per-phase metrics of the translation
+ * pipeline: wall time and allocated bytes per phase, allocated bytes per
+ * thread, event counts, and the slowest methods. Collection is off unless
+ * {@link #setEnabled} is called, in which case each phase costs a couple
+ * of map lookups. All methods may be called from any thread.
+ *
+ * <p>Phases may nest: {@code method} contains {@code ropper}, the
+ * optimizer steps ({@code ssa-convert}, {@code sccp}, ...,
+ * {@code ssa-to-rop}) and {@code rop-translate}, and {@code ssa-to-rop}
+ * contains {@code register-allocation}. The times of different phases
+ * may therefore overlap. Times are summed over all threads.</p>
+ */
+public final class Metrics {
+    /** number of methods reported by {@link #dumpJson} */
+    private static final int SLOWEST_METHOD_COUNT = 20;
+
+    /** timer returned while collection is off */
+    private static final Timer NONE = new Timer(null, 0, 0);
+
+    /** whether metrics are being collected */
+    private static volatile boolean enabled = false;
+
+    /** {@code non-null;} totals per phase name */
+    private static final ConcurrentMap<String, PhaseTotals> phases =
+        new ConcurrentHashMap<String, PhaseTotals>();
+
+    /** {@code non-null;} event counts per name */
+    private static final ConcurrentMap<String, AtomicLong> counters =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    /** {@code non-null;} last allocated byte count seen per thread name */
+    private static final ConcurrentMap<String, Long> threadAllocations =
+        new ConcurrentHashMap<String, Long>();
+
+    /**
+     * {@code non-null;} the slowest methods so far, fastest first; guarded
+     * by itself
+     */
+    private static final PriorityQueue<MethodTime> slowestMethods =
+        new PriorityQueue<MethodTime>(SLOWEST_METHOD_COUNT + 1);
+
+    /** {@code null-ok;} the thread bean, if it reports allocated bytes */
+    private static final ThreadMXBean threadBean;
+
+    /**
+     * {@code null-ok;} {@code getThreadAllocatedBytes(long)} of
+     * {@link #threadBean}, which is not part of the standard API
+     */
+    private static final Method getThreadAllocatedBytes;
+
+    static {
+        ThreadMXBean bean = null;
+        Method method = null;
+        try {
+            bean = ManagementFactory.getThreadMXBean();
+            method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            if (!method.getDeclaringClass().isInstance(bean)) {
+                method = null;
+            }
+        } catch (Throwable ex) {
+            // Allocation tracking isn't available on this VM.
+            bean = null;
+            method = null;
+        }
+        threadBean = bean;
+        getThreadAllocatedBytes = method;
+    }
+
+    /**
+     * This class is uninstantiable.
+     */
+    private Metrics() {
+        // This space intentionally left blank.
+    }
+
+    /**
+     * Turns collection on or off.
+     *
+     * @param enabled whether to collect metrics
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * @return whether metrics are being collected
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Discards everything collected so far.
+     */
+    public static void reset() {
+        phases.clear();
+        counters.clear();
+        threadAllocations.clear();
+        synchronized (slowestMethods) {
+            slowestMethods.clear();
+        }
+    }
+
+    /**
+     * Starts timing a phase on the current thread.
+     *
+     * @param phase {@code non-null;} name of the phase
+     * @return {@code non-null;} the timer, to be ended by the same thread
+     */
+    public static Timer start(String phase) {
+        if (!enabled) {
+            return NONE;
+        }
+        return new Timer(phase, System.nanoTime(), allocatedBytes());
+    }
+
+    /**
+     * Adds one to an event count.
+     *
+     * @param counter {@code non-null;} name of the count
+     */
+    public static void count(String counter) {
+        if (!enabled) {
+            return;
+        }
+
+        AtomicLong count = counters.get(counter);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = counters.putIfAbsent(counter, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Records how long a method took to translate, keeping only the
+     * slowest ones.
+     *
+     * @param method {@code non-null;} human-oriented name of the method
+     * @param nanos time it took
+     */
+    public static void recordMethod(String method, long nanos) {
+        if (!enabled) {
+            return;
+        }
+
+        synchronized (slowestMethods) {
+            slowestMethods.add(new MethodTime(method, nanos));
+            if (slowestMethods.size() > SLOWEST_METHOD_COUNT) {
+                slowestMethods.poll();
+            }
+        }
+    }
+
+    /**
+     * Prints a human-oriented table of the phases.
+     *
+     * @param out {@code non-null;} where to print to
+     */
+    public static void dumpStatistics(PrintStream out) {
+        out.println("Phase                         count    wall ms   alloc KiB");
+        for (Map.Entry<String, PhaseTotals> e : sortedPhases().entrySet()) {
+            PhaseTotals totals = e.getValue();
+            out.printf("%-28s %6d %10.1f %11d%n", e.getKey(),
+                    totals.count.get(),
+                    totals.nanos.get() / 1000000.0,
+                    totals.allocatedBytes.get() / 1024);
+        }
+    }
+
+    /**
+     * Writes everything collected as a JSON object.
+     *
+     * @param out {@code non-null;} where to write to
+     */
+    public static void dumpJson(PrintStream out) {
+        out.println("{");
+
+        out.println("  \"phases\": {");
+        String separator = "";
+        for (Map.Entry<String, PhaseTotals> e : sortedPhases().entrySet()) {
+            PhaseTotals totals = e.getValue();
+            out.print(separator);
+            out.printf("    %s: {\"count\": %d, \"wallNanos\": %d, "
+                    + "\"allocatedBytes\": %d}",
+                    quote(e.getKey()), totals.count.get(), totals.nanos.get(),
+                    totals.allocatedBytes.get());
+            separator = ",\n";
+        }
+        out.println();
+        out.println("  },");
+
+        out.println("  \"threads\": {");
+        separator = "";
+        Map<String, Long> threads =
+            new TreeMap<String, Long>(threadAllocations);
+        for (Map.Entry<String, Long> e : threads.entrySet()) {
+            out.print(separator);
+            out.printf("    %s: {\"allocatedBytes\": %d}",
+                    quote(e.getKey()), e.getValue());
+            separator = ",\n";
+        }
+        out.println();
+        out.println("  },");
+
+        out.println("  \"counters\": {");
+        separator = "";
+        Map<String, AtomicLong> counts =
+            new TreeMap<String, AtomicLong>(counters);
+        for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+            out.print(separator);
+            out.printf("    %s: %d", quote(e.getKey()), e.getValue().get());
+            separator = ",\n";
+        }
+        out.println();
+        out.println("  },");
+
+        out.println("  \"slowestMethods\": [");
+        separator = "";
+        List<MethodTime> methods;
+        synchronized (slowestMethods) {
+            methods = new ArrayList<MethodTime>(slowestMethods);
+        }
+        Collections.sort(methods, Collections.reverseOrder());
+        for (MethodTime m : methods) {
+            out.print(separator);
+            out.printf("    {\"method\": %s, \"wallNanos\": %d}",
+                    quote(m.method), m.nanos);
+            separator = ",\n";
+        }
+        out.println();
+        out.println("  ]");
+
+        out.println("}");
+    }
+
+    /**
+     * Returns the phases, slowest first.
+     */
+    private static Map<String, PhaseTotals> sortedPhases() {
+        final Map<String, PhaseTotals> snapshot =
+            new TreeMap<String, PhaseTotals>(phases);
+        Map<String, PhaseTotals> result =
+            new TreeMap<String, PhaseTotals>(new Comparator<String>() {
+                public int compare(String a, String b) {
+                    long na = snapshot.get(a).nanos.get();
+                    long nb = snapshot.get(b).nanos.get();
+                    if (na != nb) {
+                        return (na > nb) ? -1 : 1;
+                    }
+                    return a.compareTo(b);
+                }
+            });
+        result.putAll(snapshot);
+        return result;
+    }
+
+    /**
+     * Quotes a string for JSON.
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append("\\u00").append(Hex.u1(c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Gets the number of bytes allocated so far by the current thread,
+     * and remembers it as the thread's total.
+     *
+     * @return the number of bytes, or {@code 0} if unknown
+     */
+    private static long allocatedBytes() {
+        if (getThreadAllocatedBytes == null) {
+            return 0;
+        }
+
+        Thread thread = Thread.currentThread();
+        try {
+            Long bytes = (Long) getThreadAllocatedBytes.invoke(threadBean,
+                    thread.getId());
+            threadAllocations.put(thread.getName(), bytes);
+            return bytes;
+        } catch (Exception ex) {
+            return 0;
+        }
+    }
+
+    private static PhaseTotals totals(String phase) {
+        PhaseTotals totals = phases.get(phase);
+        if (totals == null) {
+            PhaseTotals newTotals = new PhaseTotals();
+            totals = phases.putIfAbsent(phase, newTotals);
+            if (totals == null) {
+                totals = newTotals;
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * A phase being timed.
+     */
+    public static final class Timer {
+        /** {@code null-ok;} name of the phase, or {@code null} for none */
+        private final String phase;
+
+        /** {@link System#nanoTime} at the start */
+        private final long startNanos;
+
+        /** bytes allocated by the thread at the start */
+        private final long startBytes;
+
+        private Timer(String phase, long startNanos, long startBytes) {
+            this.phase = phase;
+            this.startNanos = startNanos;
+            this.startBytes = startBytes;
+        }
+
+        /**
+         * Ends the phase and adds it to the totals.
+         *
+         * @return the wall time of the phase in nanoseconds, or {@code 0}
+         * if collection is off
+         */
+        public long end() {
+            if (phase == null) {
+                return 0;
+            }
+
+            long nanos = System.nanoTime() - startNanos;
+            long bytes = allocatedBytes() - startBytes;
+            PhaseTotals totals = totals(phase);
+            totals.count.incrementAndGet();
+            totals.nanos.addAndGet(nanos);
+            totals.allocatedBytes.addAndGet(Math.max(bytes, 0));
+            return nanos;
+        }
+    }
+
+    /**
+     * Totals of a phase.
+     */
+    private static final class PhaseTotals {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong nanos = new AtomicLong();
+        final AtomicLong allocatedBytes = new AtomicLong();
+    }
+
+    /**
+     * Translation time of a method, ordered by time.
+     */
+    private static final class MethodTime implements Comparable<MethodTime> {
+        final String method;
+        final long nanos;
+
+        MethodTime(String method, long nanos) {
+            this.method = method;
+            this.nanos = nanos;
+        }
+
+        public int compareTo(MethodTime other) {
+            if (nanos != other.nanos) {
+                return (nanos < other.nanos) ? -1 : 1;
+            }
+            return method.compareTo(other.method);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+
+package javassist;
+
+import java.io.IOException;
+
+/**
+ * A storage for the class files of <code>CtClass</code>es that are
+ * compressed to save memory.
+ *
+ * <p>When a frozen <code>CtClass</code> has not been used recently,
+ * <code>ClassPool</code> converts its <code>ClassFile</code> into a
+ * byte array and passes it to <code>store()</code>.  The byte array is
+ * read back by <code>Entry.load()</code> when the <code>CtClass</code>
+ * is used again.  By default, the byte arrays are kept in the heap.
+ *
+ * @see ClassPool#setClassFileStore(ClassFileStore)
+ * @see CompactClassFileStore
+ */
+public interface ClassFileStore {
+    /**
+     * Stores a class file.
+     *
+     * @param classfile     the class file.  It must not be modified
+     *                      by the caller later.
+     * @return the stored class file.
+     */
+    Entry store(byte[] classfile) throws IOException;
+
+    /**
+     * A class file held by a <code>ClassFileStore</code>.
+     */
+    interface Entry {
+        /**
+         * Returns the class file.
+         */
+        byte[] load() throws IOException;
+
+        /**
+         * Releases the memory held by the class file.
+         * <code>load()</code> must not be called after this.
+         */
+        void free();
+    }
+}
@@ -0,0 +1,473 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+
+package javassist;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.bytecode.ClassFile;
+
+/**
+ * An index of the class hierarchy seen by a <code>ClassPool</code>.
+ * It answers subtype and common-super-class queries by class name,
+ * without creating <code>CtClass</code> objects for the classes
+ * involved if possible.
+ *
+ * <p>The super class, the interfaces, and the access flags of a class
+ * are read by scanning the header of its class file, which stops
+ * before the fields and the methods, and are kept in this index.
+ * A class that has been modified or created in the <code>ClassPool</code>
+ * is examined through its <code>CtClass</code> instead, and it is not
+ * kept.  The index can be saved to a stream and loaded later to
+ * avoid scanning the same class files again; it is the caller's
+ * responsibility to discard a saved index if the class files change.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see ClassPool#getClassHierarchy()
+ * @since 3.17
+ */
+public class ClassHierarchy {
+    private static final int MAGIC = 0x4a484958;    // "JHIX"
+
+    /* Incremented whenever a class is changed in any pool.  The super
+     * types of a class remembered in an older generation are stale.
+     */
+    private static final AtomicInteger generation = new AtomicInteger();
+
+    private final ClassPool pool;
+    private final ConcurrentHashMap<String, Node> nodes
+        = new ConcurrentHashMap<String, Node>();
+    private final ConcurrentHashMap<String, Supertypes> supertypes
+        = new ConcurrentHashMap<String, Supertypes>();
+
+    /**
+     * The super class, the interfaces, and the access flags of a class.
+     */
+    static final class Node {
+        final String superclass;    // null if none.
+        final String[] interfaces;
+        final int accessFlags;
+        final boolean dynamic;      // true if read from a modified CtClass.
+
+        Node(String superclass, String[] interfaces, int accessFlags,
+             boolean dynamic) {
+            this.superclass = superclass;
+            this.interfaces = interfaces;
+            this.accessFlags = accessFlags;
+            this.dynamic = dynamic;
+        }
+    }
+
+    /**
+     * The names of a class and of all its super types.
+     */
+    private static final class Supertypes {
+        final int generation;
+        final Set<String> names;
+        final String missing;       // a super type not found, or null.
+
+        Supertypes(int generation, Set<String> names, String missing) {
+            this.generation = generation;
+            this.names = names;
+            this.missing = missing;
+        }
+    }
+
+    ClassHierarchy(ClassPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the name of the super class, as it is recorded in the
+     * class file.  The super class of an interface is
+     * <code>java.lang.Object</code>.
+     *
+     * @param classname     a fully-qualified class name.
+     * @return null if the class is <code>java.lang.Object</code>
+     *              or a primitive type.
+     */
+    public String getSuperclass(String classname) throws NotFoundException {
+        return node(classname).superclass;
+    }
+
+    /**
+     * Returns the names of the interfaces directly implemented by the
+     * class.  The returned array must not be modified.
+     *
+     * @param classname     a fully-qualified class name.
+     */
+    public String[] getInterfaces(String classname) throws NotFoundException {
+        return node(classname).interfaces;
+    }
+
+    /**
+     * Returns true if the class is an interface.
+     *
+     * @param classname     a fully-qualified class name.
+     */
+    public boolean isInterface(String classname) throws NotFoundException {
+        return (node(classname).accessFlags & Modifier.INTERFACE) != 0;
+    }
+
+    /**
+     * Determines whether a class is the same as, a subclass of, or
+     * an implementation of another class or interface, like
+     * <code>CtClass.subtypeOf()</code>.
+     *
+     * @param classname     a fully-qualified class name.
+     * @param supername     the fully-qualified name of the super type.
+     * @throws NotFoundException    if the answer is false but some
+     *                              super type of the class was not found.
+     */
+    public boolean subtypeOf(String classname, String supername)
+        throws NotFoundException
+    {
+        if (classname.equals(supername))
+            return true;
+
+        Supertypes s = supertypes(classname);
+        if (s.names.contains(supername))
+            return true;
+        else if (s.missing != null)
+            throw new NotFoundException(s.missing);
+        else
+            return false;
+    }
+
+    /**
+     * Returns the name of the most specific class that both classes
+     * extend.  Interfaces are not considered.
+     *
+     * @param classname1    a fully-qualified class name.
+     * @param classname2    a fully-qualified class name.
+     */
+    public String getCommonSuperclass(String classname1, String classname2)
+        throws NotFoundException
+    {
+        Set<String> chain = new HashSet<String>();
+        for (String c = classname1; c != null; c = node(c).superclass)
+            chain.add(c);
+
+        String last = null;
+        for (String c = classname2; c != null; c = node(c).superclass) {
+            if (chain.contains(c))
+                return c;
+
+            last = c;
+        }
+
+        return last;    // not reached unless the hierarchy is broken.
+    }
+
+    /**
+     * Writes the index into a stream.  Only the classes read from
+     * class files are written.  The stream is not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        ArrayList<Map.Entry<String, Node>> list
+            = new ArrayList<Map.Entry<String, Node>>();
+        for (Map.Entry<String, Node> e: nodes.entrySet())
+            if (!e.getValue().dynamic)
+                list.add(e);
+
+        DataOutputStream dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeInt(list.size());
+        for (Map.Entry<String, Node> e: list) {
+            Node n = e.getValue();
+            dout.writeUTF(e.getKey());
+            dout.writeBoolean(n.superclass != null);
+            if (n.superclass != null)
+                dout.writeUTF(n.superclass);
+
+            dout.writeShort(n.accessFlags);
+            dout.writeShort(n.interfaces.length);
+            for (int i = 0; i < n.interfaces.length; i++)
+                dout.writeUTF(n.interfaces[i]);
+        }
+
+        dout.flush();
+    }
+
+    /**
+     * Reads an index written by <code>writeTo()</code> and adds the
+     * classes that are not in this index yet.  The stream is not
+     * closed.
+     */
+    public void readFrom(InputStream in) throws IOException {
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() != MAGIC)
+            throw new IOException("not a class hierarchy index");
+
+        int n = din.readInt();
+        for (int i = 0; i < n; i++) {
+            String name = din.readUTF();
+            String superclass = din.readBoolean() ? din.readUTF() : null;
+            int accessFlags = din.readUnsignedShort();
+            String[] interfaces = new String[din.readUnsignedShort()];
+            for (int j = 0; j < interfaces.length; j++)
+                interfaces[j] = din.readUTF();
+
+            CtClass cached = pool.getCached(name);
+            if (cached == null || !isDynamic(cached))
+                nodes.putIfAbsent(name, new Node(superclass, interfaces,
+                                                 accessFlags, false));
+        }
+    }
+
+    /**
+     * Discards everything in this index.
+     */
+    public void clear() {
+        nodes.clear();
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Is called when a class of the pool is created, modified for the
+     * first time, or renamed.
+     */
+    void invalidate(String classname) {
+        nodes.remove(classname);
+        generation.incrementAndGet();
+    }
+
+    private Supertypes supertypes(String classname) {
+        Supertypes s = supertypes.get(classname);
+        int gen = generation.get();
+        if (s != null && s.generation == gen)
+            return s;
+
+        Set<String> names = new HashSet<String>();
+        String missing = null;
+        boolean dynamic = false;
+        ArrayList<String> todo = new ArrayList<String>();
+        todo.add(classname);
+        while (!todo.isEmpty()) {
+            String name = todo.remove(todo.size() - 1);
+            if (!names.add(name))
+                continue;
+
+            Node n;
+            try {
+                n = node(name);
+            }
+            catch (NotFoundException e) {
+                if (missing == null)
+                    missing = name;
+
+                continue;
+            }
+
+            dynamic |= n.dynamic;
+            if (n.superclass != null)
+                todo.add(n.superclass);
+
+            for (int i = 0; i < n.interfaces.length; i++)
+                todo.add(n.interfaces[i]);
+        }
+
+        s = new Supertypes(gen, names, missing);
+        if (!dynamic)
+            supertypes.put(classname, s);
+
+        return s;
+    }
+
+    Node node(String classname) throws NotFoundException {
+        Node n = find(classname);
+        if (n == null)
+            throw new NotFoundException(classname);
+
+        return n;
+    }
+
+    /* Looks for the class in the same order as ClassPool.get0().
+     */
+    private Node find(String classname) throws NotFoundException {
+        CtClass cached = pool.getCached(classname);
+        if (cached != null)
+            if (isDynamic(cached))
+                return nodeOf(cached, true);
+            else
+                return findHere(classname);
+
+        ClassPool parent = pool.parent;
+        Node n;
+        if (!pool.childFirstLookup && parent != null) {
+            n = parent.getClassHierarchy().find(classname);
+            if (n != null)
+                return n;
+        }
+
+        n = findHere(classname);
+        if (n == null && pool.childFirstLookup && parent != null)
+            n = parent.getClassHierarchy().find(classname);
+
+        return n;
+    }
+
+    /* Looks for the class in the class path of this pool.
+     */
+    private Node findHere(String classname) throws NotFoundException {
+        Node n = nodes.get(classname);
+        if (n != null)
+            return n;
+
+        InputStream in = null;
+        try {
+            in = pool.openClassfile(classname);
+        }
+        catch (NotFoundException e) {
+            // the class path cannot provide a class file.  e.g. Dalvik
+        }
+
+        if (in != null)
+            try {
+                n = scan(in);
+            }
+            catch (IOException e) {
+                throw new NotFoundException("broken class file: " + classname, e);
+            }
+            finally {
+                try {
+                    in.close();
+                }
+                catch (IOException e) {}
+            }
+        else {
+            CtClass c = pool.getCached(classname);
+            if (c == null)
+                c = pool.createCtClass(classname, true);
+
+            if (c == null)
+                return null;
+
+            n = nodeOf(c, false);
+        }
+
+        Node old = nodes.putIfAbsent(classname, n);
+        return old == null ? n : old;
+    }
+
+    private static boolean isDynamic(CtClass c) {
+        return !(c instanceof CtClassType) || c.isModified();
+    }
+
+    private static Node nodeOf(CtClass c, boolean dynamic)
+        throws NotFoundException
+    {
+        if (c instanceof CtClassType) {
+            ClassFile cf = c.getClassFile2();
+            return new Node(cf.getSuperclass(), cf.getInterfaces(),
+                            cf.getAccessFlags(), dynamic);
+        }
+
+        CtClass sc = c.getSuperclass();
+        CtClass[] ifs = c.getInterfaces();
+        String[] names = new String[ifs.length];
+        for (int i = 0; i < ifs.length; i++)
+            names[i] = ifs[i].getName();
+
+        return new Node(sc == null ? null : sc.getName(), names,
+                        c.getModifiers(), dynamic);
+    }
+
+    /* Reads the class file up to the interfaces.  Only the UTF-8 and
+     * class entries of the constant pool are kept.
+     */
+    private static Node scan(InputStream ins) throws IOException {
+        DataInputStream in = new DataInputStream(ins);
+        if (in.readInt() != 0xCAFEBABE)
+            throw new IOException("bad magic number");
+
+        in.readUnsignedShort();     // minor_version
+        in.readUnsignedShort();     // major_version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classes = new int[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+            case 1:     // Utf8
+                utf8[i] = in.readUTF();
+                break;
+            case 7:     // Class
+                classes[i] = in.readUnsignedShort();
+                break;
+            case 8:     // String
+            case 16:    // MethodType
+            case 19:    // Module
+            case 20:    // Package
+                in.skipBytes(2);
+                break;
+            case 15:    // MethodHandle
+                in.skipBytes(3);
+                break;
+            case 3:     // Integer
+            case 4:     // Float
+            case 9:     // Fieldref
+            case 10:    // Methodref
+            case 11:    // InterfaceMethodref
+            case 12:    // NameAndType
+            case 17:    // Dynamic
+            case 18:    // InvokeDynamic
+                in.skipBytes(4);
+                break;
+            case 5:     // Long
+            case 6:     // Double
+                in.skipBytes(8);
+                i++;
+                break;
+            default:
+                throw new IOException("invalid constant type: " + tag);
+            }
+        }
+
+        int accessFlags = in.readUnsignedShort();
+        in.readUnsignedShort();     // this_class
+        int superIndex = in.readUnsignedShort();
+        String superclass = superIndex == 0 ? null
+                                : className(utf8, classes, superIndex);
+        String[] interfaces = new String[in.readUnsignedShort()];
+        for (int i = 0; i < interfaces.length; i++)
+            interfaces[i] = className(utf8, classes, in.readUnsignedShort());
+
+        return new Node(superclass, interfaces, accessFlags, false);
+    }
+
+    private static String className(String[] utf8, int[] classes, int index)
+        throws IOException
+    {
+        if (index <= 0 || index >= classes.length || classes[index] == 0
+            || classes[index] >= utf8.length || utf8[classes[index]] == null)
+            throw new IOException("bad class index: " + index);
+
+        return utf8[classes[index]].replace('/', '.');
+    }
+}
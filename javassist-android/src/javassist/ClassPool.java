@@ -136,6 +136,23 @@ public class ClassPool {
 
     private int compressCount;
     private static final int COMPRESS_THRESHOLD = 100;
+    private int compressThreshold = COMPRESS_THRESHOLD;
+
+    /**
+     * Keeps compressed class files in the heap.
+     */
+    private static final ClassFileStore HEAP_STORE = new ClassFileStore() {
+        public Entry store(final byte[] classfile) {
+            return new Entry() {
+                public byte[] load() { return classfile; }
+                public void free() {}
+            };
+        }
+    };
+
+    private ClassFileStore classFileStore = HEAP_STORE;
+
+    private volatile ClassHierarchy hierarchy = null;
 
     /* releaseUnmodifiedClassFile was introduced for avoiding a bug
        of JBoss AOP.  So the value should be true except for JBoss AOP.
@@ -149,6 +166,20 @@ public class ClassPool {
      */
     public static boolean releaseUnmodifiedClassFile = true;
 
+    /**
+     * If true, the class files read from the class path are decoded
+     * lazily: their fields, methods, and attributes are not decoded
+     * until they are accessed.  This saves time and memory when most
+     * classes are only examined for their names, super classes, and
+     * interfaces.
+     *
+     * <p>The initial value is false.
+     *
+     * @see javassist.bytecode.ClassFile#ClassFile(java.io.DataInputStream,boolean)
+     * @since 3.17
+     */
+    public static boolean lazyClassFileParsing = false;
+
     protected ClassPoolTail source;
     protected ClassPool parent;
     protected Hashtable<String, CtClass> classes;        // should be synchronous
@@ -230,25 +261,40 @@ public class ClassPool {
      * @see ClassClassPath
      * @see LoaderClassPath
      */
-    public static synchronized ClassPool getDefault() {
-        if (defaultPool == null) {
-            defaultPool = new ClassPool(null);
-            defaultPool.appendSystemPath();
-        }
+    public static ClassPool getDefault() {
+        ClassPool pool = defaultPool;
+        if (pool != null)
+            return pool;
+
+        synchronized (ClassPool.class) {
+            if (defaultPool == null) {
+                pool = new ClassPool(null);
+                pool.appendSystemPath();
+                defaultPool = pool;
+            }
 
-        return defaultPool;
+            return defaultPool;
+        }
     }
     
-    public static synchronized ClassPool getDefault(Context context) {
-        if (defaultPool == null) {
-            defaultPool = new ClassPool(null);
-            defaultPool.appendSystemPath(context);
-        }
+    public static ClassPool getDefault(Context context) {
+        ClassPool pool = defaultPool;
+        if (pool != null)
+            return pool;
+
+        synchronized (ClassPool.class) {
+            if (defaultPool == null) {
+                pool = new ClassPool(null);
+                pool.appendSystemPath(context);
+                defaultPool = pool;
+            }
 
-        return defaultPool;
+            return defaultPool;
+        }
     }
 
-    private static ClassPool defaultPool = null;
+    // volatile so that getDefault() can return it without locking.
+    private static volatile ClassPool defaultPool = null;
 
     /**
      * Provide a hook so that subclasses can do their own
@@ -295,7 +341,7 @@ public class ClassPool {
      * footprint will be minimized.
      */
     void compress() {
-        if (compressCount++ > COMPRESS_THRESHOLD) {
+        if (compressCount++ > compressThreshold) {
             compressCount = 0;
             Enumeration<CtClass> e = classes.elements();
             while (e.hasMoreElements())
@@ -303,6 +349,86 @@ public class ClassPool {
         }
     }
 
+    /**
+     * Returns the index of the class hierarchy seen by this pool.
+     * It answers subtype and common-super-class queries without
+     * creating <code>CtClass</code> objects if possible.
+     *
+     * @since 3.17
+     */
+    public ClassHierarchy getClassHierarchy() {
+        ClassHierarchy h = hierarchy;
+        if (h == null)
+            synchronized (this) {
+                h = hierarchy;
+                if (h == null)
+                    hierarchy = h = new ClassHierarchy(this);
+            }
+
+        return h;
+    }
+
+    /*
+     * Is invoked when a class of this pool is created, modified for the
+     * first time, or renamed, so that the hierarchy index is updated.
+     */
+    void classChanged(String classname) {
+        ClassHierarchy h = hierarchy;
+        if (h != null)
+            h.invalidate(classname);
+    }
+
+    /**
+     * Sets how often the class files that have not been recently used
+     * are compressed.  The check is made whenever the class file of
+     * <code>threshold</code> <code>CtClass</code>es has been read.
+     *
+     * <p>The initial value is 100.
+     *
+     * @see #setClassFileStore(ClassFileStore)
+     * @since 3.17
+     */
+    public void setCompressThreshold(int threshold) {
+        compressThreshold = threshold;
+    }
+
+    /**
+     * Returns how often the class files that have not been recently used
+     * are compressed.
+     *
+     * @see #setCompressThreshold(int)
+     * @since 3.17
+     */
+    public int getCompressThreshold() {
+        return compressThreshold;
+    }
+
+    /**
+     * Sets where the class files of frozen classes are kept when they
+     * are compressed.  If it is null, they are kept in byte arrays in the
+     * heap, which is the default.
+     *
+     * <p>The class files compressed before this method is called are
+     * kept in the previous store.
+     *
+     * @see CompactClassFileStore
+     * @since 3.17
+     */
+    public void setClassFileStore(ClassFileStore store) {
+        classFileStore = store == null ? HEAP_STORE : store;
+    }
+
+    /**
+     * Returns where the class files of frozen classes are kept when they
+     * are compressed.
+     *
+     * @see #setClassFileStore(ClassFileStore)
+     * @since 3.17
+     */
+    public ClassFileStore getClassFileStore() {
+        return classFileStore;
+    }
+
     /**
      * Record a package name so that the Javassist compiler searches
      * the package to resolve a class name.
@@ -437,6 +563,8 @@ public class ClassPool {
         String newName = clazz.getName();
         checkNotFrozen(newName);
         cacheCtClass(newName, clazz, false);
+        classChanged(oldname);
+        classChanged(newName);
     }
 
     /**
@@ -957,6 +1085,34 @@ public class ClassPool {
         return source.appendClassPath(pathname);
     }
 
+    /**
+     * Writes the class files that the <code>DalvikClassClassPath</code>s on
+     * the search path have built by reflection to their metadata caches,
+     * so that the next launch of the application reads them instead.
+     * They are also written every
+     * <code>ClassMetadataCache.DEFAULT_SAVE_THRESHOLD</code> classes and
+     * when the class path is removed; calling this method, for example
+     * when the application goes to the background, saves the rest.
+     *
+     * @see #appendSystemPath(Context)
+     * @since 3.17
+     */
+    public void saveClassMetadata() {
+        source.saveClassMetadata();
+    }
+
+    /**
+     * Makes the search path forget which packages its jar files contain
+     * and which classes it has not found.  This must be called if a jar
+     * file on the search path changes.  Other class paths need not be
+     * reported since they are searched every time.
+     *
+     * @since 3.17
+     */
+    public void clearClassPathCache() {
+        source.clearIndex();
+    }
+
     /**
      * Detatches the <code>ClassPath</code> object from the search path.
      * The detached <code>ClassPath</code> object cannot be added
@@ -1127,17 +1283,17 @@ public class ClassPool {
         }
     }
 
-    private static synchronized Object toClass2(Method method,
+    private static Object toClass2(Method method,
             ClassLoader loader, Object[] args)
         throws Exception
     {
-        method.setAccessible(true);
-        try {
-            return method.invoke(loader, args);
-        }
-        finally {
-            method.setAccessible(false);
-        }
+        /* the method is left accessible, so that threads need not
+         * be serialized here to set and reset the flag.
+         */
+        if (!method.isAccessible())
+            method.setAccessible(true);
+
+        return method.invoke(loader, args);
     }
 
     /**
@@ -20,12 +20,18 @@ import java.io.*;
 import java.util.jar.*;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.content.Context;
 
 import javassist.android.DalvikClassClassPath;
 import javassist.android.DalvikClassPath;
+import javassist.android.Log;
 import javassist.bytecode.ClassFile;
 import javassist.bytecode.ConstPool;
 import javassist.bytecode.FieldInfo;
@@ -41,6 +47,21 @@ final class ClassPathList {
     }
 }
 
+/**
+ * A class path that can tell whether it contains a package, so that
+ * <code>ClassPoolTail</code> asks it only for the classes of the
+ * packages it contains.
+ */
+interface PackageIndexedClassPath extends ClassPath {
+    /**
+     * Returns false if this class path contains no class of the package.
+     *
+     * @param packageName   a package name such as <code>java.lang</code>,
+     *                      or "" for the default package.
+     */
+    boolean hasPackage(String packageName);
+}
+
 final class DirClassPath implements ClassPath {
     String directory;
 
@@ -82,7 +103,7 @@ final class DirClassPath implements ClassPath {
     }
 }
 
-final class JarDirClassPath implements ClassPath {
+final class JarDirClassPath implements PackageIndexedClassPath {
     JarClassPath[] jars;
 
     JarDirClassPath(String dirName) throws NotFoundException {
@@ -101,27 +122,42 @@ final class JarDirClassPath implements ClassPath {
     }
 
     public InputStream openClassfile(String classname) throws NotFoundException {
-        if (jars != null)
-            for (int i = 0; i < jars.length; i++) {
-                InputStream is = jars[i].openClassfile(classname);
-                if (is != null)
-                    return is;
-            }
+        if (jars != null) {
+            String packageName = ClassPoolTail.packageOf(classname);
+            for (int i = 0; i < jars.length; i++)
+                if (jars[i].hasPackage(packageName)) {
+                    InputStream is = jars[i].openClassfile(classname);
+                    if (is != null)
+                        return is;
+                }
+        }
 
         return null;    // not found
     }
 
     public URL find(String classname) {
-        if (jars != null)
-            for (int i = 0; i < jars.length; i++) {
-                URL url = jars[i].find(classname);
-                if (url != null)
-                    return url;
-            }
+        if (jars != null) {
+            String packageName = ClassPoolTail.packageOf(classname);
+            for (int i = 0; i < jars.length; i++)
+                if (jars[i].hasPackage(packageName)) {
+                    URL url = jars[i].find(classname);
+                    if (url != null)
+                        return url;
+                }
+        }
 
         return null;    // not found
     }
 
+    public boolean hasPackage(String packageName) {
+        if (jars != null)
+            for (int i = 0; i < jars.length; i++)
+                if (jars[i].hasPackage(packageName))
+                    return true;
+
+        return false;
+    }
+
     public void close() {
         if (jars != null)
             for (int i = 0; i < jars.length; i++)
@@ -129,9 +165,10 @@ final class JarDirClassPath implements ClassPath {
     }
 }
 
-final class JarClassPath implements ClassPath {
+final class JarClassPath implements PackageIndexedClassPath {
     JarFile jarfile;
     String jarfileURL;
+    Set<String> packages;   // read from the jar directory on demand.
 
     JarClassPath(String pathname) throws NotFoundException {
         try {
@@ -172,6 +209,27 @@ final class JarClassPath implements ClassPath {
         return null;            // not found
     }
 
+    public synchronized boolean hasPackage(String packageName) {
+        if (packages == null) {
+            if (jarfile == null)
+                return false;
+
+            Set<String> set = new HashSet<String>();
+            Enumeration<JarEntry> e = jarfile.entries();
+            while (e.hasMoreElements()) {
+                String name = e.nextElement().getName();
+                if (name.endsWith(".class")) {
+                    int i = name.lastIndexOf('/');
+                    set.add(i < 0 ? "" : name.substring(0, i).replace('/', '.'));
+                }
+            }
+
+            packages = set;
+        }
+
+        return packages.contains(packageName);
+    }
+
     public void close() {
         try {
             jarfile.close();
@@ -188,8 +246,34 @@ final class JarClassPath implements ClassPath {
 final class ClassPoolTail {
     protected ClassPathList pathList;
 
+    /**
+     * The class paths to search for the classes of each package, and the
+     * names of the classes that were not found.  A new index replaces it
+     * whenever the class path changes or <code>clearIndex()</code> is
+     * called.
+     *
+     * <p>Only jar files are indexed.  A directory may get new class files
+     * at any time, for example by <code>CtClass.writeFile()</code>, and a
+     * class loader or a user-defined class path may find classes defined
+     * later, for example by <code>CtClass.toClass()</code>.  So such a
+     * class path is searched for every package and a class is remembered
+     * as not found only if all the class paths searched for it are jar
+     * files.
+     */
+    private volatile Index index;
+
+    private static final int MAX_NOT_FOUND = 4096;
+
+    private static final class Index {
+        final ConcurrentHashMap<String, ClassPath[]> packages
+            = new ConcurrentHashMap<String, ClassPath[]>();
+        final ConcurrentHashMap<String, Boolean> notFound
+            = new ConcurrentHashMap<String, Boolean>();
+    }
+
     public ClassPoolTail() {
         pathList = null;
+        index = new Index();
     }
 
     public String toString() {
@@ -208,6 +292,7 @@ final class ClassPoolTail {
 
     public synchronized ClassPath insertClassPath(ClassPath cp) {
         pathList = new ClassPathList(cp, pathList);
+        index = new Index();
         return cp;
     }
 
@@ -223,6 +308,7 @@ final class ClassPoolTail {
             list.next = tail;
         }
 
+        index = new Index();
         return cp;
     }
 
@@ -239,9 +325,33 @@ final class ClassPoolTail {
                         list = list.next;
             }
 
+        index = new Index();
         cp.close();
     }
 
+    /**
+     * Writes the class files built by the <code>DalvikClassClassPath</code>s
+     * on the class path to their metadata caches.
+     */
+    public void saveClassMetadata() {
+        for (ClassPathList list = pathList; list != null; list = list.next)
+            if (list.path instanceof DalvikClassClassPath)
+                try {
+                    ((DalvikClassClassPath)list.path).saveMetadata();
+                }
+                catch (IOException e) {
+                    Log.w(e, "cannot save class metadata.");
+                }
+    }
+
+    /**
+     * Discards what the index has remembered about the class path, for
+     * example after a jar file on the class path is replaced.
+     */
+    public void clearIndex() {
+        index = new Index();
+    }
+
     public ClassPath appendSystemPath() {
         return appendClassPath(new ClassClassPath());
     }
@@ -317,6 +427,52 @@ final class ClassPoolTail {
     */
 
 
+    /**
+     * Returns the package name of a class, or "" for the default package.
+     */
+    static String packageOf(String classname) {
+        int i = classname.lastIndexOf('.');
+        return i < 0 ? "" : classname.substring(0, i);
+    }
+
+    /**
+     * Returns the class paths that may contain the class, in search order.
+     * Only class paths that are not <code>PackageIndexedClassPath</code>s
+     * or that contain the package of the class are returned.
+     *
+     * @return null     if the class was not found by an earlier search.
+     */
+    private ClassPath[] candidates(Index idx, String classname) {
+        if (idx.notFound.containsKey(classname))
+            return null;
+
+        String packageName = packageOf(classname);
+        ClassPath[] paths = idx.packages.get(packageName);
+        if (paths == null) {
+            ArrayList<ClassPath> found = new ArrayList<ClassPath>();
+            for (ClassPathList list = pathList; list != null; list = list.next)
+                if (!(list.path instanceof PackageIndexedClassPath)
+                    || ((PackageIndexedClassPath)list.path).hasPackage(packageName))
+                    found.add(list.path);
+
+            paths = found.toArray(new ClassPath[found.size()]);
+            idx.packages.put(packageName, paths);
+        }
+
+        return paths;
+    }
+
+    private static void notFound(Index idx, String classname, ClassPath[] paths) {
+        for (int i = 0; i < paths.length; i++)
+            if (!(paths[i] instanceof PackageIndexedClassPath))
+                return;
+
+        if (idx.notFound.size() >= MAX_NOT_FOUND)
+            idx.notFound.clear();
+
+        idx.notFound.put(classname, Boolean.TRUE);
+    }
+
     /**
      * Opens the class file for the class specified by
      * <code>classname</code>.
@@ -328,43 +484,48 @@ final class ClassPoolTail {
     InputStream openClassfile(String classname)
         throws NotFoundException
     {
-        ClassPathList list = pathList;
-        InputStream ins = null;
+        Index idx = index;
+        ClassPath[] paths = candidates(idx, classname);
+        if (paths == null)
+            return null;    // not found
+
         NotFoundException error = null;
-        while (list != null) {
+        for (int i = 0; i < paths.length; i++) {
             try {
-                ins = list.path.openClassfile(classname);
+                InputStream ins = paths[i].openClassfile(classname);
+                if (ins != null)
+                    return ins;
             }
             catch (NotFoundException e) {
                 if (error == null)
                     error = e;
             }
-
-            if (ins == null)
-                list = list.next;
-            else
-                return ins;
         }
 
         if (error != null)
             throw error;
-        else
-            return null;    // not found
+
+        notFound(idx, classname, paths);
+        return null;    // not found
     }
     
     ClassFile getClassFile(String classname) throws NotFoundException, IOException {
-    	ClassPathList list = pathList;
-        InputStream ins = null;
+        Index idx = index;
+        ClassPath[] paths = candidates(idx, classname);
+        if (paths == null)
+            return null;    // not found
+
         NotFoundException error = null;
-        while (list != null) {
+        for (int i = 0; i < paths.length; i++) {
+            InputStream ins = null;
             try {
-            	if (list.path instanceof DalvikClassPath) {
-            		final ClassFile cf = ((DalvikClassPath)list.path).getClassFile(classname);
+            	if (paths[i] instanceof DalvikClassPath) {
+            		final ClassFile cf = ((DalvikClassPath)paths[i]).getClassFile(classname);
             		if (null != cf) {
             			return cf;
             		}
             	} else {
-            		ins = list.path.openClassfile(classname);
+            		ins = paths[i].openClassfile(classname);
             	}
             }
             catch (NotFoundException e) {
@@ -372,16 +533,16 @@ final class ClassPoolTail {
                     error = e;
             }
 
-            if (ins == null)
-                list = list.next;
-			else
-				return new ClassFile(new DataInputStream(ins));
+            if (ins != null)
+				return new ClassFile(new DataInputStream(ins),
+				                     ClassPool.lazyClassFileParsing);
         }
 
         if (error != null)
             throw error;
-        else
-            return null;    // not found
+
+        notFound(idx, classname, paths);
+        return null;    // not found
     }
 
     /**
@@ -393,16 +554,18 @@ final class ClassPoolTail {
      * @return null if the class file could not be found.
      */
     public URL find(String classname) {
-        ClassPathList list = pathList;
-        URL url = null;
-        while (list != null) {
-            url = list.path.find(classname);
-            if (url == null)
-                list = list.next;
-            else
+        Index idx = index;
+        ClassPath[] paths = candidates(idx, classname);
+        if (paths == null)
+            return null;
+
+        for (int i = 0; i < paths.length; i++) {
+            URL url = paths[i].find(classname);
+            if (url != null)
                 return url;
         }
 
+        notFound(idx, classname, paths);
         return null;
     }
 
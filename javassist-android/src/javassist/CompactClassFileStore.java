@@ -0,0 +1,381 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+
+package javassist;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A <code>ClassFileStore</code> keeping class files out of the heap.
+ *
+ * <p>Class files are kept in direct buffers, optionally deflated, as
+ * long as they fit in the memory budget.  When the budget is exceeded,
+ * the least recently used class files are moved to a temporary spill
+ * file, from which they are read back on demand.  The space of a class
+ * file freed in the spill file is reused by the class files spilled
+ * later, and the spill file is truncated when its tail is freed.  The
+ * spill file is deleted by <code>close()</code> or when the VM exits.
+ *
+ * <p>A class file is freed by <code>Entry.free()</code>, or, if the
+ * <code>Entry</code> is dropped without being freed, some time after
+ * the garbage collector has found the <code>Entry</code> unreachable.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @see ClassPool#setClassFileStore(ClassFileStore)
+ */
+public class CompactClassFileStore implements ClassFileStore {
+    private final long budget;
+    private final boolean deflate;
+    private final File spillDir;
+
+    /**
+     * The class files in direct buffers, least recently used first.
+     */
+    private final LinkedHashMap<Slot, Boolean> resident
+        = new LinkedHashMap<Slot, Boolean>(16, 0.75f, true);
+
+    /**
+     * The references to the entries not freed yet.  When an entry
+     * becomes unreachable, its reference is put into <code>dropped</code>
+     * and its class file is freed by <code>expunge()</code>.
+     */
+    private final HashSet<EntryRef> entries = new HashSet<EntryRef>();
+    private final ReferenceQueue<StoredEntry> dropped
+        = new ReferenceQueue<StoredEntry>();
+
+    /**
+     * The free ranges in the spill file, from their offsets to their
+     * lengths.  Adjacent ranges are merged, and no range reaches the
+     * end of the spill file.
+     */
+    private final TreeMap<Long, Long> holes = new TreeMap<Long, Long>();
+
+    private long residentBytes;
+    private RandomAccessFile spill;
+    private File spillFile;
+    private long spillLength;
+
+    /**
+     * Constructs a store.
+     *
+     * @param budget        the maximum number of bytes kept in direct
+     *                      buffers.  If it is 0, all the class files
+     *                      are written to the spill file.
+     * @param deflate       true if the class files are deflated.
+     */
+    public CompactClassFileStore(long budget, boolean deflate) {
+        this(budget, deflate, null);
+    }
+
+    /**
+     * Constructs a store.
+     *
+     * @param budget        the maximum number of bytes kept in direct
+     *                      buffers.
+     * @param deflate       true if the class files are deflated.
+     * @param spillDir      the directory where the spill file is created.
+     *                      If it is null, the default temporary-file
+     *                      directory is used.
+     */
+    public CompactClassFileStore(long budget, boolean deflate, File spillDir) {
+        if (budget < 0)
+            throw new IllegalArgumentException("budget < 0");
+
+        this.budget = budget;
+        this.deflate = deflate;
+        this.spillDir = spillDir;
+    }
+
+    public Entry store(byte[] classfile) throws IOException {
+        byte[] data = deflate ? deflate(classfile) : classfile;
+        ByteBuffer buf = ByteBuffer.allocateDirect(data.length);
+        buf.put(data);
+        Slot slot = new Slot(buf, data.length, classfile.length);
+        StoredEntry e = new StoredEntry(slot);
+        synchronized (this) {
+            expunge();
+            slot.ref = new EntryRef(e, slot, dropped);
+            entries.add(slot.ref);
+            resident.put(slot, Boolean.TRUE);
+            residentBytes += slot.size;
+            evict();
+        }
+
+        return e;
+    }
+
+    /**
+     * Returns the number of bytes kept in direct buffers.
+     */
+    public synchronized long getResidentBytes() {
+        expunge();
+        return residentBytes;
+    }
+
+    /**
+     * Returns the size of the spill file.
+     */
+    public synchronized long getSpillBytes() {
+        expunge();
+        return spillLength;
+    }
+
+    /**
+     * Deletes the spill file.  The class files stored in it are lost.
+     */
+    public synchronized void close() throws IOException {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+            spillFile.delete();
+            spillFile = null;
+            spillLength = 0;
+            holes.clear();
+            for (EntryRef ref: entries)
+                ref.slot.offset = -1;   // lost.
+        }
+    }
+
+    /**
+     * Moves the least recently used class files to the spill file
+     * until the others fit in the budget.
+     */
+    private void evict() throws IOException {
+        Iterator<Slot> it = resident.keySet().iterator();
+        while (residentBytes > budget && it.hasNext()) {
+            Slot slot = it.next();
+            byte[] data = new byte[slot.size];
+            slot.buffer.clear();
+            slot.buffer.get(data);
+            if (spill == null) {
+                spillFile = File.createTempFile("javassist", ".spill", spillDir);
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+
+            long offset = allocate(slot.size);
+            spill.seek(offset);
+            spill.write(data);
+            slot.offset = offset;
+            slot.buffer = null;
+            residentBytes -= slot.size;
+            it.remove();
+        }
+    }
+
+    /**
+     * Returns the offset of a range of the spill file for
+     * <code>size</code> bytes.  The first hole large enough is used;
+     * otherwise the spill file is extended.
+     */
+    private long allocate(int size) {
+        Iterator<Map.Entry<Long, Long>> it = holes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Long> hole = it.next();
+            long offset = hole.getKey();
+            long length = hole.getValue();
+            if (length >= size) {
+                it.remove();
+                if (length > size)
+                    holes.put(offset + size, length - size);
+
+                return offset;
+            }
+        }
+
+        long offset = spillLength;
+        spillLength += size;
+        return offset;
+    }
+
+    /**
+     * Makes a range of the spill file free.
+     */
+    private void deallocate(long offset, long length) {
+        Map.Entry<Long, Long> prev = holes.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            holes.remove(prev.getKey());
+            offset = prev.getKey();
+            length += prev.getValue();
+        }
+
+        Long next = holes.remove(offset + length);
+        if (next != null)
+            length += next;
+
+        if (offset + length == spillLength) {
+            spillLength = offset;
+            try {
+                spill.setLength(spillLength);
+            }
+            catch (IOException e) {}    // the file is just left larger.
+        }
+        else
+            holes.put(offset, length);
+    }
+
+    /**
+     * Frees the class files of the entries that have become unreachable
+     * without being freed.
+     */
+    private void expunge() {
+        Reference<? extends StoredEntry> ref;
+        while ((ref = dropped.poll()) != null)
+            release(((EntryRef)ref).slot);
+    }
+
+    private synchronized byte[] load(Slot slot) throws IOException {
+        byte[] data = new byte[slot.size];
+        if (slot.buffer != null) {
+            resident.get(slot);    // makes it the most recently used.
+            slot.buffer.clear();
+            slot.buffer.get(data);
+        }
+        else if (slot.offset >= 0 && spill != null) {
+            spill.seek(slot.offset);
+            spill.readFully(data);
+        }
+        else
+            throw new IOException("the class file has been freed");
+
+        return deflate ? inflate(data, slot.length) : data;
+    }
+
+    private synchronized void release(Slot slot) {
+        if (!entries.remove(slot.ref))
+            return;     // already freed.
+
+        slot.ref.clear();
+        if (slot.buffer != null) {
+            resident.remove(slot);
+            residentBytes -= slot.size;
+            slot.buffer = null;
+        }
+        else if (slot.offset >= 0) {
+            if (spill != null)
+                deallocate(slot.offset, slot.size);
+
+            slot.offset = -1;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buf);
+                out.write(buf, 0, len);
+            }
+
+            return out.toByteArray();
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] data, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] result = new byte[length];
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int len = inflater.inflate(result, size, length - size);
+                if (len == 0 && inflater.needsInput())
+                    break;
+
+                size += len;
+            }
+
+            if (size != length)
+                throw new IOException("broken class file in the store");
+
+            return result;
+        }
+        catch (DataFormatException e) {
+            throw new IOException(e.toString());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Where a class file is stored.  It is kept apart from the
+     * <code>StoredEntry</code> so that it stays reachable after the
+     * <code>StoredEntry</code> has been dropped.
+     */
+    private static final class Slot {
+        ByteBuffer buffer;      // null if spilled or freed.
+        long offset = -1;       // the position in the spill file.
+        final int size;         // the number of bytes stored.
+        final int length;       // the length of the class file.
+        EntryRef ref;
+
+        Slot(ByteBuffer buffer, int size, int length) {
+            this.buffer = buffer;
+            this.size = size;
+            this.length = length;
+        }
+    }
+
+    private static final class EntryRef extends WeakReference<StoredEntry> {
+        final Slot slot;
+
+        EntryRef(StoredEntry e, Slot slot, ReferenceQueue<StoredEntry> queue) {
+            super(e, queue);
+            this.slot = slot;
+        }
+    }
+
+    private final class StoredEntry implements Entry {
+        private final Slot slot;
+
+        StoredEntry(Slot slot) {
+            this.slot = slot;
+        }
+
+        public byte[] load() throws IOException {
+            return CompactClassFileStore.this.load(slot);
+        }
+
+        public void free() {
+            release(slot);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package javassist;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A <code>ClassPool</code> that can be shared by many threads without
+ * serializing them.
+ *
+ * <p><code>ClassPool</code> keeps its <code>CtClass</code>es in a
+ * <code>Hashtable</code> and loads them while holding the lock of the
+ * pool, so threads calling <code>get()</code> at the same time wait
+ * for each other even if the classes they ask for have been loaded
+ * already.  This class keeps them in a <code>ConcurrentHashMap</code>
+ * instead: <code>get()</code> of a loaded class takes no lock, and a
+ * class that has not been loaded yet is loaded while holding a lock
+ * for its name only, so that threads loading different classes proceed
+ * in parallel and a class is never loaded twice.
+ *
+ * <p>Modifying a <code>CtClass</code> is not made thread-safe by this
+ * class; threads must not modify the same <code>CtClass</code> at the
+ * same time.
+ *
+ * @see ClassPool
+ */
+public class ConcurrentClassPool extends ClassPool {
+    private final ConcurrentHashMap<String, CtClass> cache;
+
+    /**
+     * Locks of the classes being loaded, by name.  An entry exists only
+     * while its class is being loaded.
+     */
+    private final ConcurrentHashMap<String, Object> loadLocks;
+
+    private final AtomicInteger compressCount = new AtomicInteger();
+
+    /**
+     * Creates a root class pool.  No parent class pool is specified.
+     */
+    public ConcurrentClassPool() {
+        this(null);
+    }
+
+    /**
+     * Creates a root class pool.  If <code>useDefaultPath</code> is
+     * true, <code>appendSystemPath()</code> is called.
+     *
+     * @param useDefaultPath    true if the system search path is
+     *                          appended.
+     */
+    public ConcurrentClassPool(boolean useDefaultPath) {
+        this(null);
+        if (useDefaultPath)
+            appendSystemPath();
+    }
+
+    /**
+     * Creates a class pool.
+     *
+     * @param parent    the parent of this class pool.  If this is a root
+     *                  class pool, this parameter must be <code>null</code>.
+     */
+    public ConcurrentClassPool(ClassPool parent) {
+        super(parent);
+        cache = new ConcurrentHashMap<String, CtClass>(256);
+        loadLocks = new ConcurrentHashMap<String, Object>();
+
+        // move the primitive types put by the super constructor.
+        cache.putAll(classes);
+        classes.clear();
+    }
+
+    protected CtClass getCached(String classname) {
+        return cache.get(classname);
+    }
+
+    protected void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+        cache.put(classname, c);
+    }
+
+    protected CtClass removeCached(String classname) {
+        return cache.remove(classname);
+    }
+
+    void compress() {
+        if (compressCount.incrementAndGet() > getCompressThreshold()) {
+            compressCount.set(0);
+            for (CtClass c: cache.values())
+                c.compress();
+        }
+    }
+
+    /**
+     * Returns the cached class without locking.  Otherwise, loads the
+     * class while holding a lock for <code>classname</code>.
+     */
+    protected CtClass get0(String classname, boolean useCache)
+        throws NotFoundException
+    {
+        if (!useCache)
+            return load(classname, false);
+
+        CtClass clazz = getCached(classname);
+        if (clazz != null)
+            return clazz;
+
+        Object lock = new Object();
+        Object running = loadLocks.putIfAbsent(classname, lock);
+        if (running != null)
+            lock = running;
+
+        synchronized (lock) {
+            try {
+                // another thread may have loaded it while we waited.
+                clazz = getCached(classname);
+                if (clazz != null)
+                    return clazz;
+
+                return load(classname, true);
+            }
+            finally {
+                loadLocks.remove(classname, lock);
+            }
+        }
+    }
+
+    /**
+     * Does what <code>ClassPool.get0()</code> does after looking up
+     * the cache.
+     */
+    private CtClass load(String classname, boolean useCache)
+        throws NotFoundException
+    {
+        CtClass clazz;
+        if (!childFirstLookup && parent != null) {
+            clazz = parent.get0(classname, useCache);
+            if (clazz != null)
+                return clazz;
+        }
+
+        clazz = createCtClass(classname, useCache);
+        if (clazz != null) {
+            if (useCache) {
+                /* clazz.getName() != classname if classname is "[L<name>;",
+                 * so another thread may have cached it under the other name.
+                 */
+                CtClass cached = cache.putIfAbsent(clazz.getName(), clazz);
+                if (cached != null)
+                    return cached;
+            }
+
+            return clazz;
+        }
+
+        if (childFirstLookup && parent != null)
+            clazz = parent.get0(classname, useCache);
+
+        return clazz;
+    }
+
+    public CtClass makeClass(String classname, CtClass superclass)
+        throws RuntimeException
+    {
+        checkNotFrozen(classname);
+        CtClass clazz = new CtNewClass(classname, this, false, superclass);
+        cacheCtClass(classname, clazz, true);
+        return clazz;
+    }
+
+    CtClass makeNestedClass(String classname) {
+        checkNotFrozen(classname);
+        CtClass clazz = new CtNewNestedClass(classname, this, false, null);
+        cacheCtClass(classname, clazz, true);
+        return clazz;
+    }
+
+    public CtClass makeInterface(String name, CtClass superclass)
+        throws RuntimeException
+    {
+        checkNotFrozen(name);
+        CtClass clazz = new CtNewClass(name, this, true, superclass);
+        cacheCtClass(name, clazz, true);
+        return clazz;
+    }
+}
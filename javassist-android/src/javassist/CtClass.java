@@ -1214,6 +1214,8 @@ public abstract class CtClass {
         CtClass obj = cp.removeCached(getName());
         if (obj != this)
             cp.cacheCtClass(getName(), obj, false);
+
+        releaseStoredClassFile();
     }
 
     /**
@@ -1469,4 +1471,9 @@ public abstract class CtClass {
      * This method is overridden by CtClassType.
      */
     void compress() {}
+
+    /* Invoked from detach().
+     * This method is overridden by CtClassType.
+     */
+    void releaseStoredClassFile() {}
 }
@@ -62,7 +62,7 @@ class CtClassType extends CtClass {
     boolean wasPruned;
     boolean gcConstPool;    // if true, the constant pool entries will be garbage collected. 
     ClassFile classfile;
-    byte[] rawClassfile;    // backup storage
+    ClassFileStore.Entry rawClassfile;    // backup storage
 
     private WeakReference<CtMember.Cache> memberCache;
     private AccessorMaker accessors;
@@ -91,7 +91,8 @@ class CtClassType extends CtClass {
 
     CtClassType(InputStream ins, ClassPool cp) throws IOException {
         this((String)null, cp);
-        classfile = new ClassFile(new DataInputStream(ins));
+        classfile = new ClassFile(new DataInputStream(ins),
+                                  ClassPool.lazyClassFileParsing);
         qualifiedName = classfile.getName();
     }
 
@@ -167,16 +168,28 @@ class CtClassType extends CtClass {
             return cfile;
 
         classPool.compress();
-        if (rawClassfile != null) {
-            try {
-                classfile = new ClassFile(new DataInputStream(
-                                            new ByteArrayInputStream(rawClassfile)));
-                rawClassfile = null;
-                getCount = GET_THRESHOLD;
-                return classfile;
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e.toString(), e);
+        synchronized (this) {
+            /* saveClassFile() and releaseStoredClassFile() are also
+             * synchronized.  Another thread may have restored the class
+             * file and freed the stored entry in the meantime.
+             */
+            cfile = classfile;
+            if (cfile != null)
+                return cfile;
+
+            if (rawClassfile != null) {
+                try {
+                    classfile = new ClassFile(new DataInputStream(
+                                                new ByteArrayInputStream(rawClassfile.load())),
+                                              ClassPool.lazyClassFileParsing);
+                    rawClassfile.free();
+                    rawClassfile = null;
+                    getCount = GET_THRESHOLD;
+                    return classfile;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(e.toString(), e);
+                }
             }
         }
 
@@ -238,12 +251,23 @@ class CtClassType extends CtClass {
         try {
             classfile.write(out);
             barray.close();
-            rawClassfile = barray.toByteArray();
+            rawClassfile = classPool.getClassFileStore().store(barray.toByteArray());
             classfile = null;
         }
         catch (IOException e) {}
     }
 
+    /**
+     * Frees the class file kept in the <code>ClassFileStore</code>.
+     * This object cannot be used any more.
+     */
+    synchronized void releaseStoredClassFile() {
+        if (rawClassfile != null) {
+            rawClassfile.free();
+            rawClassfile = null;
+        }
+    }
+
     private synchronized void removeClassFile() {
         if (classfile != null && !isModified() && hasMemberCache() == null)
             classfile = null;
@@ -276,7 +300,10 @@ class CtClassType extends CtClass {
             throw new RuntimeException(msg);
         }
 
-        wasChanged = true;
+        if (!wasChanged) {
+            wasChanged = true;
+            classPool.classChanged(getName());
+        }
     }
 
     public void defrost() {
@@ -290,6 +317,10 @@ class CtClassType extends CtClass {
         if (this == clazz || getName().equals(cname))
             return true;
 
+        // the index knows this class only if the pool returns this object.
+        if (classPool.getCached(getName()) == this)
+            return classPool.getClassHierarchy().subtypeOf(getName(), cname);
+
         ClassFile file = getClassFile2();
         String supername = file.getSuperclass();
         if (supername != null && supername.equals(cname))
@@ -29,6 +29,7 @@ class CtNewClass extends CtClassType {
                boolean isInterface, CtClass superclass) {
         super(name, cp);
         wasChanged = true;
+        cp.classChanged(name);
         String superName;
         if (isInterface || superclass == null)
             superName = null;
@@ -0,0 +1,319 @@
+package javassist.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import android.content.Context;
+import android.os.Build;
+
+/**
+ * Persistent store of the class files that {@link DalvikClassClassPath}
+ * synthesizes by reflection, so that they are built once per installation of
+ * the application instead of once per launch.
+ *
+ * All the entries of an APK are kept in one file in the cache directory. The
+ * file is stamped with the path, size and modification time of the APK, the
+ * CRC of its classes.dex and the build fingerprint of the device, and it is
+ * discarded as soon as any of them changes. The file is mapped into memory
+ * when the cache is created and an entry is copied out only when it is asked
+ * for. Entries put afterwards are kept in memory and appended to the file by
+ * {@link #save()}, which {@link #put(String, byte[])} calls by itself once
+ * the number of entries kept in memory reaches the save threshold.
+ *
+ * Layout of the file: magic, format version and stamp, followed by the
+ * entries up to the end of the file. An entry is its class name, the length
+ * of its class file and the class file itself. Strings are stored as a
+ * length followed by UTF-8 bytes. An entry cut short by an interrupted save
+ * is ignored and overwritten by the next save.
+ */
+public class ClassMetadataCache {
+	private static final String CACHE_DIR_NAME = "javassist-meta";
+	private static final String SUFFIX_META = ".meta";
+	private static final String SUFFIX_TEMP = ".tmp";
+	private static final String DEX_ENTRY_NAME = "classes.dex";
+	private static final String CHARSET = "UTF-8";
+
+	private static final int MAGIC = 0x4a4d4554; // "JMET"
+	private static final int VERSION = 2;
+
+	/** default number of entries kept in memory before they are saved */
+	public static final int DEFAULT_SAVE_THRESHOLD = 32;
+
+	private final File file;
+	private final String stamp;
+
+	/** mapped image of the file, or null if there is no valid file */
+	private ByteBuffer mapped;
+	/** offset and length of each class file in {@link #mapped} */
+	private final HashMap<String, int[]> index = new HashMap<String, int[]>();
+	/** length of the header and the complete entries of the mapped file */
+	private long validLength;
+	/** entries put since the file was mapped */
+	private final LinkedHashMap<String, byte[]> added = new LinkedHashMap<String, byte[]>();
+	private int saveThreshold = DEFAULT_SAVE_THRESHOLD;
+
+	public ClassMetadataCache(File dir, String apkPath) {
+		if (null == dir) {
+			throw new NullPointerException("dir == null");
+		}
+		if (null == apkPath) {
+			throw new NullPointerException("apkPath == null");
+		}
+		this.file = new File(dir, Integer.toHexString(apkPath.hashCode()) + SUFFIX_META);
+		this.stamp = makeStamp(apkPath);
+		open();
+	}
+
+	public ClassMetadataCache(Context context) {
+		this(new File(context.getCacheDir(), CACHE_DIR_NAME), context.getApplicationInfo().sourceDir);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized int getSaveThreshold() {
+		return saveThreshold;
+	}
+
+	/**
+	 * Sets the number of entries kept in memory at which
+	 * {@link #put(String, byte[])} saves them. 0 disables saving by put().
+	 */
+	public synchronized void setSaveThreshold(int saveThreshold) {
+		if (0 > saveThreshold) {
+			throw new IllegalArgumentException("saveThreshold < 0");
+		}
+		this.saveThreshold = saveThreshold;
+	}
+
+	/**
+	 * Returns whether the class file of the class is in the cache.
+	 */
+	public synchronized boolean contains(String classname) {
+		return index.containsKey(classname) || added.containsKey(classname);
+	}
+
+	/**
+	 * Returns a copy of the cached class file of the class, or null if there
+	 * is no entry.
+	 */
+	public synchronized byte[] get(String classname) {
+		final byte[] b = added.get(classname);
+		if (null != b) {
+			return b.clone();
+		}
+		final int[] entry = index.get(classname);
+		if (null == entry) {
+			return null;
+		}
+		final byte[] classfile = new byte[entry[1]];
+		final ByteBuffer buf = mapped.duplicate();
+		buf.position(entry[0]);
+		buf.get(classfile);
+		return classfile;
+	}
+
+	/**
+	 * Adds the class file of the class. The entry is written to the disk by
+	 * the next {@link #save()}, which is called here once the save threshold
+	 * is reached. Failures of that save are logged and otherwise ignored.
+	 */
+	public synchronized void put(String classname, byte[] classfile) {
+		if (index.containsKey(classname)) {
+			return;
+		}
+		added.put(classname, classfile.clone());
+		if (0 < saveThreshold && added.size() >= saveThreshold) {
+			try {
+				save();
+			} catch (IOException e) {
+				Log.w(e, "cannot save class metadata '%s'.", file.getAbsolutePath());
+			}
+		}
+	}
+
+	/**
+	 * Writes the entries put since the last save to the disk. They are
+	 * appended to the file, or, if there is no valid file, a new file is
+	 * written under a temporary name and renamed.
+	 */
+	public synchronized void save() throws IOException {
+		if (added.isEmpty()) {
+			return;
+		}
+		final File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException(String.format("cannot make directory '%s'.", dir.getAbsolutePath()));
+		}
+
+		// the file may also have been deleted with the rest of the cache.
+		final boolean fresh = null == mapped || !file.isFile();
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		if (fresh) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeString(out, stamp);
+		}
+		for (Map.Entry<String, byte[]> e : added.entrySet()) {
+			writeString(out, e.getKey());
+			out.writeInt(e.getValue().length);
+			out.write(e.getValue());
+		}
+		out.flush();
+
+		if (fresh) {
+			writeNewFile(dir, bytes);
+		} else {
+			final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+				raf.seek(validLength);
+				raf.write(bytes.toByteArray());
+			} finally {
+				raf.close();
+			}
+		}
+
+		mapped = null;
+		index.clear();
+		added.clear();
+		open();
+	}
+
+	private void writeNewFile(File dir, ByteArrayOutputStream bytes) throws IOException {
+		final File tmp = new File(dir, file.getName() + SUFFIX_TEMP);
+		try {
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				bytes.writeTo(fos);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(file)) {
+				throw new IOException(String.format("cannot rename '%s'.", tmp.getAbsolutePath()));
+			}
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps the file and reads its index. A file that is broken or stamped for
+	 * another APK is deleted.
+	 */
+	private void open() {
+		if (!file.isFile()) {
+			return;
+		}
+		try {
+			final RandomAccessFile raf = new RandomAccessFile(file, "r");
+			final ByteBuffer buf;
+			try {
+				// the mapping stays valid after the file is closed.
+				buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			} finally {
+				raf.close();
+			}
+			if (MAGIC != buf.getInt() || VERSION != buf.getInt() || !stamp.equals(readString(buf))) {
+				Log.d("discard stale class metadata '%s'.", file.getAbsolutePath());
+				file.delete();
+				return;
+			}
+			int end = buf.position();
+			while (buf.hasRemaining()) {
+				final String name = readEntryName(buf);
+				if (null == name || 4 > buf.remaining()) {
+					break;	// cut short by an interrupted save.
+				}
+				final int length = buf.getInt();
+				final int offset = buf.position();
+				if (0 > length || buf.remaining() < length) {
+					break;
+				}
+				buf.position(offset + length);
+				index.put(name, new int[] { offset, length });
+				end = buf.position();
+			}
+			validLength = end;
+			mapped = buf;
+		} catch (IOException e) {
+			discard(e);
+		} catch (BufferUnderflowException e) {
+			discard(e);
+		} catch (IllegalArgumentException e) {
+			discard(e);
+		}
+	}
+
+	private void discard(Exception e) {
+		Log.w(e, "cannot read class metadata '%s'.", file.getAbsolutePath());
+		index.clear();
+		file.delete();
+	}
+
+	private static String makeStamp(String apkPath) {
+		final File apk = new File(apkPath);
+		long crc = -1;
+		try {
+			final ZipFile zip = new ZipFile(apk);
+			try {
+				final ZipEntry dex = zip.getEntry(DEX_ENTRY_NAME);
+				if (null != dex) {
+					crc = dex.getCrc();
+				}
+			} finally {
+				zip.close();
+			}
+		} catch (IOException e) {
+			Log.w(e, "cannot read '%s'.", apkPath);
+		}
+		return String.format("%s:%d:%d:%x:%s", apk.getAbsolutePath(), apk.length(), apk.lastModified(), crc, Build.FINGERPRINT);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		final byte[] b = s.getBytes(CHARSET);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Reads the class name of an entry, or returns null if the file ends
+	 * before it does.
+	 */
+	private static String readEntryName(ByteBuffer buf) throws IOException {
+		if (4 > buf.remaining()) {
+			return null;
+		}
+		final int length = buf.getInt();
+		if (0 > length || buf.remaining() < length) {
+			return null;
+		}
+		buf.position(buf.position() - 4);
+		return readString(buf);
+	}
+
+	private static String readString(ByteBuffer buf) throws IOException {
+		final int length = buf.getInt();
+		if (0 > length || buf.remaining() < length) {
+			throw new IOException("broken string");
+		}
+		final byte[] b = new byte[length];
+		buf.get(b);
+		return new String(b, CHARSET);
+	}
+}
@@ -1,5 +1,9 @@
 package javassist.android;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Constructor;
@@ -22,24 +26,62 @@ import javassist.bytecode.ExceptionsAttribute;
 import javassist.bytecode.FieldInfo;
 import javassist.bytecode.MethodInfo;
 
+/**
+ * Class path that builds class files of the classes of the application by
+ * reflection.
+ *
+ * The class files are kept in a {@link ClassMetadataCache} so that a class is
+ * reflected on only once per installation of the application. The APK itself
+ * is opened on the first lookup the cache cannot answer. The cache writes the
+ * class files to the disk every few classes; {@link #saveMetadata()},
+ * {@link #close()} and {@link javassist.ClassPool#saveClassMetadata()} write
+ * the rest.
+ */
 public class DalvikClassClassPath implements DalvikClassPath {
 	private final Class<?> clazz;
-	private final JarFile apk;
+	private final Context context;
+	private final ClassMetadataCache metadata;
+	private JarFile apk;
+	private boolean apkOpened;
 	
-	private DalvikClassClassPath(Class<?> c, Context ctx) {
-		clazz = c;
-		JarFile jarFile = null;
-		try {
-			final ApplicationInfo ai = ctx.getApplicationInfo();
-			jarFile = new JarFile(ctx, ai.sourceDir);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		apk = jarFile;
+	private DalvikClassClassPath(Class<?> c, Context ctx, ClassMetadataCache metadata) {
+		this.clazz = c;
+		this.context = ctx;
+		this.metadata = metadata;
 	}
 	
 	public DalvikClassClassPath(Context context) {
-		this(java.lang.Object.class, context);
+		this(context, new ClassMetadataCache(context));
+	}
+	
+	/**
+	 * @param metadata	the cache of the class files, or null to build them on
+	 * 					every lookup.
+	 */
+	public DalvikClassClassPath(Context context, ClassMetadataCache metadata) {
+		this(java.lang.Object.class, context, metadata);
+	}
+	
+	/**
+	 * Writes the class files built so far to the metadata cache.
+	 */
+	public void saveMetadata() throws IOException {
+		if (null != metadata) {
+			metadata.save();
+		}
+	}
+	
+	private synchronized JarFile apk() {
+		if (!apkOpened) {
+			apkOpened = true;
+			try {
+				final ApplicationInfo ai = context.getApplicationInfo();
+				apk = new JarFile(context, ai.sourceDir);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return apk;
 	}
 	
 	@Override
@@ -49,9 +91,18 @@ public class DalvikClassClassPath implements DalvikClassPath {
 	
 	@Override
 	public ClassFile getClassFile(String classname) throws NotFoundException {
+		final ClassFile cached = getCachedClassFile(classname);
+		if (null != cached) {
+			return cached;
+		}
+		
+		final JarFile apk = apk();
+		if (null == apk) {
+			throw new NotFoundException(classname);
+		}
 		Class<?> clazz = null;
 		try {
-			clazz = this.apk.getClass(classname);
+			clazz = apk.getClass(classname);
 		} catch (ClassNotFoundException e) {
 			throw new NotFoundException(e.getMessage(), e);
 		}
@@ -63,11 +114,53 @@ public class DalvikClassClassPath implements DalvikClassPath {
 		addConstructors(cf, clazz);
 		addMethods(cf, clazz);
 		
+		putCachedClassFile(classname, cf);
 		return cf;
 	}
+	
+	private ClassFile getCachedClassFile(String classname) {
+		if (null == metadata) {
+			return null;
+		}
+		final byte[] b = metadata.get(classname);
+		if (null == b) {
+			return null;
+		}
+		try {
+			return new ClassFile(new DataInputStream(new ByteArrayInputStream(b)));
+		} catch (IOException e) {
+			Log.w(e, "cannot read cached class file of '%s'.", classname);
+			return null;
+		}
+	}
+	
+	private void putCachedClassFile(String classname, ClassFile cf) {
+		if (null == metadata) {
+			return;
+		}
+		try {
+			final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+			final DataOutputStream out = new DataOutputStream(bout);
+			cf.write(out);
+			out.flush();
+			metadata.put(classname, bout.toByteArray());
+		} catch (IOException e) {
+			Log.w(e, "cannot cache class file of '%s'.", classname);
+		}
+	}
 
 	@Override
 	public URL find(String classname) {
+		if (null != metadata && metadata.contains(classname)) {
+			try {
+				return new URL("file", "", classname);
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+				return null;
+			}
+		}
+		
+		final JarFile apk = apk();
 		if (null == apk) {
 			return null;
 		}
@@ -87,7 +180,11 @@ public class DalvikClassClassPath implements DalvikClassPath {
 
 	@Override
 	public void close() {
-		// nothing to do.
+		try {
+			saveMetadata();
+		} catch (IOException e) {
+			Log.w(e, "cannot save class metadata.");
+		}
 	}
 
 	@Override
@@ -0,0 +1,247 @@
+package javassist.android;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import android.content.Context;
+
+import com.android.dx.util.FileUtils;
+
+/**
+ * Content-addressed, size-bounded store of generated DEX files.
+ *
+ * Each entry is kept as "&lt;key&gt;.dex" in the cache directory, where the key
+ * is a hex digest computed by {@link DexFile} from the input class files and
+ * the translation options. The least recently used entries are evicted once
+ * the total size of the directory exceeds the configured limit.
+ *
+ * The modification time of an entry is its last access time. Accesses are
+ * also recorded in memory, so that the order is kept on file systems that
+ * do not let the modification time be changed.
+ *
+ * Loaders of the entries can keep their optimized DEX files in
+ * {@link #getOptimizedDirectory()}. Such a file is counted as a part of the
+ * entry of the same name and evicted together with it.
+ */
+public class DexCache {
+	private static final String CACHE_DIR_NAME = "javassist-dex";
+	private static final String SUFFIX_DEX = ".dex";
+	private static final String SUFFIX_TEMP = ".tmp";
+	private static final String OPTIMIZED_DIR_NAME = "odex";
+
+	private static final FileFilter ENTRY_FILTER = new FileFilter() {
+		@Override
+		public boolean accept(File f) {
+			return f.isFile() && f.getName().endsWith(SUFFIX_DEX);
+		}
+	};
+
+	/** default upper bound of the cache directory size (8 MiB) */
+	public static final long DEFAULT_MAX_SIZE = 8L * 1024 * 1024;
+
+	private final File dir;
+	private final long maxSize;
+	/** last access time of the entries accessed by this instance, by file name */
+	private final HashMap<String, Long> accessTimes = new HashMap<String, Long>();
+
+	public DexCache(File dir, long maxSize) {
+		if (null == dir) {
+			throw new NullPointerException("dir == null");
+		}
+		if (0 >= maxSize) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		this.dir = dir;
+		this.maxSize = maxSize;
+	}
+
+	public DexCache(Context context, long maxSize) {
+		this(new File(context.getCacheDir(), CACHE_DIR_NAME), maxSize);
+	}
+
+	public DexCache(Context context) {
+		this(context, DEFAULT_MAX_SIZE);
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Returns the directory for the optimized DEX files of the entries, such
+	 * as the optimizedDirectory of a DexClassLoader, and makes it if needed.
+	 */
+	public synchronized File getOptimizedDirectory() throws IOException {
+		final File odexDir = new File(dir, OPTIMIZED_DIR_NAME);
+		if (!odexDir.isDirectory() && !odexDir.mkdirs()) {
+			throw new IOException(String.format("cannot make directory '%s'.", odexDir.getAbsolutePath()));
+		}
+		return odexDir;
+	}
+
+	/**
+	 * Returns the cached DEX image for the key, or null if there is no entry.
+	 * A hit marks the entry as the most recently used one.
+	 */
+	public synchronized byte[] get(String key) {
+		final File f = entryFile(key);
+		if (!f.isFile()) {
+			return null;
+		}
+		final byte[] dex;
+		try {
+			dex = FileUtils.readFile(f);
+		} catch (RuntimeException e) {
+			Log.w(e, "cannot read cached dex '%s'.", f.getAbsolutePath());
+			f.delete();
+			return null;
+		}
+		touch(f);
+		return dex;
+	}
+
+	/**
+	 * Returns the file holding the cached DEX image for the key, or null if
+	 * there is no entry. A hit marks the entry as the most recently used one.
+	 */
+	public synchronized File getFile(String key) {
+		final File f = entryFile(key);
+		if (!f.isFile()) {
+			return null;
+		}
+		touch(f);
+		return f;
+	}
+
+	/**
+	 * Stores the DEX image under the key and evicts old entries if the cache
+	 * has grown beyond its limit. The new entry itself is never evicted here,
+	 * even if it alone is larger than the limit; it goes with the next put.
+	 * Failures are logged and otherwise ignored, since the cache is only an
+	 * accelerator.
+	 */
+	public synchronized void put(String key, byte[] dex) {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			Log.w("cannot make directory '%s'.", dir.getAbsolutePath());
+			return;
+		}
+
+		final File tmp = new File(dir, key + SUFFIX_TEMP);
+		try {
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				fos.write(dex);
+			} finally {
+				fos.close();
+			}
+			if (!tmp.renameTo(entryFile(key))) {
+				throw new IOException(String.format("cannot rename '%s'.", tmp.getAbsolutePath()));
+			}
+		} catch (IOException e) {
+			Log.w(e, "cannot store dex '%s' into cache.", key);
+			tmp.delete();
+			return;
+		}
+
+		trim(entryFile(key));
+	}
+
+	/**
+	 * Removes every entry from the cache.
+	 */
+	public synchronized void clear() {
+		deleteFiles(new File(dir, OPTIMIZED_DIR_NAME));
+		deleteFiles(dir);
+		accessTimes.clear();
+	}
+
+	private static void deleteFiles(File d) {
+		final File[] files = d.listFiles();
+		if (null == files) {
+			return;
+		}
+		for (File f : files) {
+			f.delete();
+		}
+	}
+
+	private File entryFile(String key) {
+		return new File(dir, key + SUFFIX_DEX);
+	}
+
+	/**
+	 * Returns the optimized DEX file of the entry, under the name that
+	 * DexClassLoader gives it.
+	 */
+	private File optimizedFile(File entry) {
+		return new File(new File(dir, OPTIMIZED_DIR_NAME), entry.getName());
+	}
+
+	private long entrySize(File entry) {
+		return entry.length() + optimizedFile(entry).length();
+	}
+
+	private void trim(File keep) {
+		final File[] files = dir.listFiles(ENTRY_FILTER);
+		if (null == files) {
+			return;
+		}
+
+		long total = 0;
+		for (File f : files) {
+			total += entrySize(f);
+		}
+		if (total <= maxSize) {
+			return;
+		}
+
+		final HashMap<File, Long> times = new HashMap<File, Long>();
+		for (File f : files) {
+			times.put(f, accessTime(f));
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long l = times.get(lhs);
+				final long r = times.get(rhs);
+				return (l < r) ? -1 : ((l == r) ? 0 : 1);
+			}
+		});
+		for (File f : files) {
+			if (total <= maxSize) {
+				break;
+			}
+			if (f.equals(keep)) {
+				continue;
+			}
+			final long length = entrySize(f);
+			if (f.delete()) {
+				optimizedFile(f).delete();
+				total -= length;
+				accessTimes.remove(f.getName());
+			}
+		}
+	}
+
+	private void touch(File f) {
+		final long now = System.currentTimeMillis();
+		accessTimes.put(f.getName(), now);
+		if (!f.setLastModified(now)) {
+			Log.d("cannot set modification time of '%s'.", f.getAbsolutePath());
+		}
+	}
+
+	private long accessTime(File f) {
+		final Long t = accessTimes.get(f.getName());
+		return (null == t) ? f.lastModified() : Math.max(t, f.lastModified());
+	}
+}
@@ -1,9 +1,20 @@
 package javassist.android;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.bytecode.ClassFile;
+
+import com.android.dx.Version;
 import com.android.dx.dex.DexOptions;
 import com.android.dx.dex.cf.CfOptions;
 import com.android.dx.dex.cf.CfTranslator;
@@ -11,24 +22,94 @@ import com.android.dx.dex.file.ClassDefItem;
 import com.android.dx.util.FileUtils;
 
 public class DexFile {
+	/** format of the cache key; change it whenever the translation changes */
+	private static final int CACHE_KEY_VERSION = 1;
+	private static final String CHARSET = "UTF-8";
+
 	private final com.android.dx.dex.file.DexFile file;
 	private final DexOptions dex_options = new DexOptions();
-	
+	private final CfOptions cf_options = new CfOptions();
+	private final DexCache cache;
+
+	/** added classes, kept for the cache key; only used when a cache is attached. */
+	private final List<ClassEntry> classes = new ArrayList<ClassEntry>();
+	private int translated = 0;
+
 	public DexFile() {
+		this(null);
+	}
+
+	/**
+	 * Creates a DEX file which looks up its output in the given cache before
+	 * translating any class. Translation is deferred until the DEX image is
+	 * written, so that a cache hit skips it completely.
+	 */
+	public DexFile(DexCache cache) {
 		this.file = new com.android.dx.dex.file.DexFile(dex_options);
+		this.cache = cache;
 	}
-	
+
 	public void addClass(File classFile) {
-		final CfOptions cf_options = new CfOptions();
-		final ClassDefItem cdi = CfTranslator.translate(classFile.getName(), FileUtils.readFile(classFile), cf_options, dex_options);
-		file.add(cdi);
+		addClass(classFile.getName(), FileUtils.readFile(classFile));
+	}
+
+	/**
+	 * Adds a class generated by Javassist without writing it to a file.
+	 * Once this method is called, the class cannot be modified any more.
+	 */
+	public void addClass(CtClass clazz) throws IOException, CannotCompileException {
+		addClass(toClassFileName(clazz.getName()), clazz.toBytecode());
+	}
+
+	/**
+	 * Adds a class from its in-memory class file representation.
+	 */
+	public void addClass(ClassFile classFile) throws IOException {
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bos);
+		try {
+			classFile.write(out);
+		} finally {
+			out.close();
+		}
+		addClass(toClassFileName(classFile.getName()), bos.toByteArray());
+	}
+
+	private void addClass(String name, byte[] bytes) {
+		if (null != cache) {
+			classes.add(new ClassEntry(name, bytes));
+			return;
+		}
+		translate(name, bytes);
 	}
-	
+
+	/**
+	 * Returns the DEX image of the classes added so far.
+	 */
+	public byte[] toDex() throws IOException {
+		if (null == cache) {
+			return file.toDex(null, false);
+		}
+		final String key = cacheKey();
+		byte[] dex = cache.get(key);
+		if (null == dex) {
+			translatePending();
+			dex = file.toDex(null, false);
+			cache.put(key, dex);
+		}
+		return dex;
+	}
+
 	public void writeFile(String filePath) throws IOException {
+		final byte[] dex = (null == cache) ? null : toDex();
 		final FileOutputStream fos = new FileOutputStream(filePath);
 		Throwable error = null;
 		try {
-			file.writeTo(fos, null, false);
+			if (null != dex) {
+				fos.write(dex);
+			} else {
+				file.writeTo(fos.getChannel());
+			}
 		} catch (IOException e) {
 			error = e;
 		} finally {
@@ -38,4 +119,75 @@ public class DexFile {
 			new File(filePath).delete();
 		}
 	}
+
+	private static String toClassFileName(String classname) {
+		return classname.replace('.', '/') + ".class";
+	}
+
+	private void translatePending() {
+		for (; translated < classes.size(); ++translated) {
+			final ClassEntry e = classes.get(translated);
+			translate(e.name, e.bytes);
+		}
+	}
+
+	private void translate(String name, byte[] bytes) {
+		final ClassDefItem cdi = CfTranslator.translate(name, bytes, cf_options, dex_options);
+		file.add(cdi);
+	}
+
+	/**
+	 * Computes the SHA-1 digest of the added class files, of every option
+	 * that affects the translated output and of the version of dx, since the
+	 * cache outlives upgrades of the application.
+	 */
+	private String cacheKey() throws IOException {
+		final MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		update(md, CACHE_KEY_VERSION);
+		update(md, Version.VERSION);
+		update(md, dex_options.targetApiLevel);
+		update(md, cf_options.positionInfo);
+		update(md, cf_options.localInfo ? 1 : 0);
+		update(md, cf_options.optimize ? 1 : 0);
+		for (ClassEntry e : classes) {
+			update(md, e.name);
+			update(md, e.bytes.length);
+			md.update(e.bytes);
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		for (byte b : md.digest()) {
+			sb.append(String.format("%02x", b & 0xff));
+		}
+		return sb.toString();
+	}
+
+	private static void update(MessageDigest md, String value) throws IOException {
+		final byte[] b = value.getBytes(CHARSET);
+		update(md, b.length);
+		md.update(b);
+	}
+
+	private static void update(MessageDigest md, int value) {
+		md.update((byte)(value >>> 24));
+		md.update((byte)(value >>> 16));
+		md.update((byte)(value >>> 8));
+		md.update((byte)value);
+	}
+
+	private static final class ClassEntry {
+		final String name;
+		final byte[] bytes;
+
+		ClassEntry(String name, byte[] bytes) {
+			this.name = name;
+			this.bytes = bytes;
+		}
+	}
 }
@@ -0,0 +1,114 @@
+package javassist.android;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.content.Context;
+import dalvik.system.DexClassLoader;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+
+/**
+ * Loads DEX images produced by {@link DexFile#toDex()}.
+ *
+ * DexClassLoader can only open files, so the image is stored in a
+ * {@link DexCache} under the application's cache directory, keyed by the
+ * SHA-1 signature in its header. The optimized file made by DexClassLoader
+ * is kept in the same cache. Loading the same image again reuses the stored
+ * files, and the least recently used ones are deleted once the directory
+ * grows beyond {@link DexCache#DEFAULT_MAX_SIZE}.
+ */
+public class DexLoader {
+	private static final String DEX_DIR_NAME = "javassist-classes";
+
+	/** offset and length of the SHA-1 signature in the DEX header */
+	private static final int SIGNATURE_OFFSET = 12;
+	private static final int SIGNATURE_SIZE = 20;
+
+	private static DexCache cache;
+
+	private DexLoader() {
+	}
+
+	public static ClassLoader load(Context context, byte[] dex) throws IOException {
+		return load(context, dex, context.getClassLoader());
+	}
+
+	public static ClassLoader load(Context context, byte[] dex, ClassLoader parent) throws IOException {
+		final File f = store(context, dex);
+		return new DexClassLoader(
+				f.getAbsolutePath(),
+				getCache(context).getOptimizedDirectory().getAbsolutePath(),
+				context.getApplicationInfo().nativeLibraryDir,
+				parent);
+	}
+
+	public static ClassLoader load(Context context, DexFile dexFile) throws IOException {
+		return load(context, dexFile.toDex());
+	}
+
+	/**
+	 * Translates the class into DEX and loads it, like
+	 * {@link javassist.ClassPool#toClass(CtClass)} does on a JVM.
+	 * Once this method is called, the class cannot be modified any more.
+	 */
+	public static Class<?> toClass(Context context, CtClass clazz) throws CannotCompileException {
+		try {
+			final DexFile df = new DexFile();
+			df.addClass(clazz);
+			return load(context, df).loadClass(clazz.getName());
+		} catch (IOException e) {
+			throw new CannotCompileException(e);
+		} catch (ClassNotFoundException e) {
+			throw new CannotCompileException(e);
+		}
+	}
+
+	private static File store(Context context, byte[] dex) throws IOException {
+		if (dex.length < SIGNATURE_OFFSET + SIGNATURE_SIZE) {
+			throw new IOException("invalid dex image.");
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		for (int i = SIGNATURE_OFFSET; i < SIGNATURE_OFFSET + SIGNATURE_SIZE; ++i) {
+			sb.append(String.format("%02x", dex[i] & 0xff));
+		}
+		final String key = sb.toString();
+
+		final DexCache cache = getCache(context);
+		File f = cache.getFile(key);
+		if (null != f && f.length() == dex.length) {
+			return f;
+		}
+		cache.put(key, dex);
+		f = cache.getFile(key);
+		if (null == f) {
+			throw new IOException(String.format("cannot store dex '%s'.", key));
+		}
+		return f;
+	}
+
+	private static synchronized DexCache getCache(Context context) {
+		if (null == cache) {
+			cache = new DexCache(new File(context.getCacheDir(), DEX_DIR_NAME), DexCache.DEFAULT_MAX_SIZE);
+			deleteLegacyFiles(new File(context.getFilesDir(), DEX_DIR_NAME));
+		}
+		return cache;
+	}
+
+	/**
+	 * Deletes the files stored under the files directory by older versions,
+	 * which were never deleted.
+	 */
+	private static void deleteLegacyFiles(File dir) {
+		final File[] files = dir.listFiles();
+		if (null == files) {
+			return;
+		}
+		for (File f : files) {
+			f.delete();
+		}
+		dir.delete();
+	}
+}
@@ -0,0 +1,40 @@
+package javassist.android;
+
+import java.io.IOException;
+
+import android.content.Context;
+
+import javassist.CannotCompileException;
+import javassist.bytecode.ClassFile;
+import javassist.util.proxy.ProxyBatch;
+
+/**
+ * Translates all the proxy classes of a {@link ProxyBatch} into a single
+ * DEX file and loads them through one class loader.
+ */
+public class DexProxyLoader implements ProxyBatch.Loader {
+	private final Context context;
+	private final DexCache cache;
+
+	public DexProxyLoader(Context context) {
+		this(context, null);
+	}
+
+	public DexProxyLoader(Context context, DexCache cache) {
+		this.context = context;
+		this.cache = cache;
+	}
+
+	@Override
+	public ClassLoader load(ClassFile[] classes, ClassLoader parent) throws CannotCompileException {
+		try {
+			final DexFile df = new DexFile(cache);
+			for (ClassFile cf : classes) {
+				df.addClass(cf);
+			}
+			return DexLoader.load(context, df.toDex(), parent);
+		} catch (IOException e) {
+			throw new CannotCompileException(e);
+		}
+	}
+}
@@ -16,6 +16,8 @@
 
 package javassist.bytecode;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
@@ -45,6 +47,14 @@ public final class ClassFile {
     String[] cachedInterfaces;
     String cachedSuperclass;
 
+    /* If the class file is read lazily, fields, methods, and attributes
+     * are null until they are read from lazyBytes.  The offsets are
+     * relative to lazyBytes.
+     */
+    private byte[] lazyBytes;
+    private ConstPool lazyConstPool;
+    private int fieldsOffset, methodsOffset, attributesOffset;
+
     /**
      * The major version number of class files
      * for JDK 1.1.
@@ -114,6 +124,29 @@ public final class ClassFile {
         read(in);
     }
 
+    /**
+     * Constructs a class file from a byte stream.  If <code>lazy</code>
+     * is true, only the constant pool, the class name, the super class
+     * and the interfaces are decoded here.  The fields, the methods, and
+     * the attributes are only located in the stream; each of them is
+     * decoded when it is accessed for the first time.
+     *
+     * <p>The stream is read up to the end of the class file in either
+     * case, and a malformed class file structure is reported here.  An
+     * error in the contents of a member or an attribute may not be
+     * reported until it is decoded, by a <code>RuntimeException</code>.
+     *
+     * @param lazy      true if the members and attributes are decoded
+     *                  on demand.
+     * @since 3.17
+     */
+    public ClassFile(DataInputStream in, boolean lazy) throws IOException {
+        if (lazy)
+            readLazily(in);
+        else
+            read(in);
+    }
+
     /**
      * Constructs a class file including no members.
      * 
@@ -175,21 +208,21 @@ public final class ClassFile {
      */
     public void compact() {
         ConstPool cp = compact0();
-        ArrayList<MethodInfo> m = methods;
+        ArrayList<MethodInfo> m = methods();
         int n = m.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = m.get(i);
             minfo.compact(cp);
         }
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         for (int i = 0; i < n; ++i) {
             FieldInfo finfo = f.get(i);
             finfo.compact(cp);
         }
 
-        attributes = AttributeInfo.copyAll(attributes, cp);
+        attributes = AttributeInfo.copyAll(attributes(), cp);
         constPool = cp;
     }
 
@@ -240,14 +273,14 @@ public final class ClassFile {
             newAttributes.add(signature);
         }
         
-        ArrayList<MethodInfo> m = methods;
+        ArrayList<MethodInfo> m = methods();
         int n = m.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = m.get(i);
             minfo.prune(cp);
         }
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         for (int i = 0; i < n; ++i) {
             FieldInfo finfo = f.get(i);
@@ -377,7 +410,7 @@ public final class ClassFile {
 
         try {
             this.superClass = constPool.addClassInfo(superclass);
-            ArrayList<MethodInfo> list = methods;
+            ArrayList<MethodInfo> list = methods();
             int n = list.size();
             for (int i = 0; i < n; ++i) {
                 MethodInfo minfo = (MethodInfo)list.get(i);
@@ -417,8 +450,8 @@ public final class ClassFile {
         newname = Descriptor.toJvmName(newname);
         constPool.renameClass(oldname, newname);
 
-        AttributeInfo.renameClass(attributes, oldname, newname);
-        ArrayList<MethodInfo> m = methods;
+        AttributeInfo.renameClass(attributes(), oldname, newname);
+        ArrayList<MethodInfo> m = methods();
         n = m.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = m.get(i);
@@ -427,7 +460,7 @@ public final class ClassFile {
             AttributeInfo.renameClass(minfo.getAttributes(), oldname, newname);
         }
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         for (int i = 0; i < n; ++i) {
             FieldInfo finfo = f.get(i);
@@ -454,8 +487,8 @@ public final class ClassFile {
 
         constPool.renameClass(classnames);
 
-        AttributeInfo.renameClass(attributes, classnames);
-        ArrayList<MethodInfo> m = methods;
+        AttributeInfo.renameClass(attributes(), classnames);
+        ArrayList<MethodInfo> m = methods();
         int n = m.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = m.get(i);
@@ -464,7 +497,7 @@ public final class ClassFile {
             AttributeInfo.renameClass(minfo.getAttributes(), classnames);
         }
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         for (int i = 0; i < n; ++i) {
             FieldInfo finfo = f.get(i);
@@ -481,8 +514,8 @@ public final class ClassFile {
     public final void getRefClasses(Map<String, String> classnames) {
         constPool.renameClass(classnames);
 
-        AttributeInfo.getRefClasses(attributes, classnames);
-        ArrayList<MethodInfo> m = methods;
+        AttributeInfo.getRefClasses(attributes(), classnames);
+        ArrayList<MethodInfo> m = methods();
         int n = m.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = m.get(i);
@@ -491,7 +524,7 @@ public final class ClassFile {
             AttributeInfo.getRefClasses(minfo.getAttributes(), classnames);
         }
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         for (int i = 0; i < n; ++i) {
             FieldInfo finfo = f.get(i);
@@ -567,7 +600,7 @@ public final class ClassFile {
      * @see FieldInfo
      */
     public List<FieldInfo> getFields() {
-        return fields;
+        return fields();
     }
 
     /**
@@ -577,7 +610,7 @@ public final class ClassFile {
      */
     public void addField(FieldInfo finfo) throws DuplicateMemberException {
         testExistingField(finfo.getName(), finfo.getDescriptor());
-        fields.add(finfo);
+        fields().add(finfo);
     }
 
     /**
@@ -589,12 +622,12 @@ public final class ClassFile {
      * @since 3.13
      */
     public final void addField2(FieldInfo finfo) {
-        fields.add(finfo);
+        fields().add(finfo);
     }
 
     private void testExistingField(String name, String descriptor)
             throws DuplicateMemberException {
-        ListIterator<FieldInfo> it = fields.listIterator(0);
+        ListIterator<FieldInfo> it = fields().listIterator(0);
         while (it.hasNext()) {
             FieldInfo minfo = it.next();
             if (minfo.getName().equals(name))
@@ -609,7 +642,7 @@ public final class ClassFile {
      * @see MethodInfo
      */
     public List<MethodInfo> getMethods() {
-        return methods;
+        return methods();
     }
 
     /**
@@ -619,7 +652,7 @@ public final class ClassFile {
      * @return null if no such method is found.
      */
     public MethodInfo getMethod(String name) {
-        ArrayList<MethodInfo> list = methods;
+        ArrayList<MethodInfo> list = methods();
         int n = list.size();
         for (int i = 0; i < n; ++i) {
             MethodInfo minfo = list.get(i);
@@ -647,7 +680,7 @@ public final class ClassFile {
      */
     public void addMethod(MethodInfo minfo) throws DuplicateMemberException {
         testExistingMethod(minfo);
-        methods.add(minfo);
+        methods().add(minfo);
     }
 
     /**
@@ -659,7 +692,7 @@ public final class ClassFile {
      * @since 3.13
      */
     public final void addMethod2(MethodInfo minfo) {
-        methods.add(minfo);
+        methods().add(minfo);
     }
 
     private void testExistingMethod(MethodInfo newMinfo)
@@ -667,7 +700,7 @@ public final class ClassFile {
     {
         String name = newMinfo.getName();
         String descriptor = newMinfo.getDescriptor();
-        ListIterator<MethodInfo> it = methods.listIterator(0);
+        ListIterator<MethodInfo> it = methods().listIterator(0);
         while (it.hasNext())
             if (isDuplicated(newMinfo, name, descriptor, it.next(), it))
                 throw new DuplicateMemberException("duplicate method: " + name
@@ -714,7 +747,7 @@ public final class ClassFile {
      * @see AttributeInfo
      */
     public List<AttributeInfo> getAttributes() {
-        return attributes;
+        return attributes();
     }
 
     /**
@@ -726,7 +759,7 @@ public final class ClassFile {
      * @see #getAttributes()
      */
     public AttributeInfo getAttribute(String name) {
-        ArrayList<AttributeInfo> list = attributes;
+        ArrayList<AttributeInfo> list = attributes();
         int n = list.size();
         for (int i = 0; i < n; ++i) {
             AttributeInfo ai = (AttributeInfo)list.get(i);
@@ -744,8 +777,8 @@ public final class ClassFile {
      * @see #getAttributes()
      */
     public void addAttribute(AttributeInfo info) {
-        AttributeInfo.remove(attributes, info.getName());
-        attributes.add(info);
+        AttributeInfo.remove(attributes(), info.getName());
+        attributes().add(info);
     }
 
     /**
@@ -764,6 +797,46 @@ public final class ClassFile {
 
     private void read(DataInputStream in) throws IOException {
         int i, n;
+        readHeader(in);
+
+        ConstPool cp = constPool;
+        n = in.readUnsignedShort();
+        fields = new ArrayList<FieldInfo>();
+        for (i = 0; i < n; ++i)
+            addField2(new FieldInfo(cp, in));
+
+        n = in.readUnsignedShort();
+        methods = new ArrayList<MethodInfo>();
+        for (i = 0; i < n; ++i)
+            addMethod2(new MethodInfo(cp, in));
+
+        attributes = new ArrayList<AttributeInfo>();
+        n = in.readUnsignedShort();
+        for (i = 0; i < n; ++i)
+            addAttribute(AttributeInfo.read(cp, in));
+
+        thisclassname = constPool.getClassInfo(thisClass);
+    }
+
+    private void readLazily(DataInputStream in) throws IOException {
+        readHeader(in);
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bout);
+        fieldsOffset = out.size();
+        copyMembers(in, out);
+        methodsOffset = out.size();
+        copyMembers(in, out);
+        attributesOffset = out.size();
+        copyAttributes(in, out);
+        out.close();
+
+        lazyBytes = bout.toByteArray();
+        lazyConstPool = constPool;
+        thisclassname = constPool.getClassInfo(thisClass);
+    }
+
+    private void readHeader(DataInputStream in) throws IOException {
         int magic = in.readInt();
         if (magic != 0xCAFEBABE)
             throw new IOException("bad magic number: " + Integer.toHexString(magic));
@@ -775,32 +848,126 @@ public final class ClassFile {
         thisClass = in.readUnsignedShort();
         constPool.setThisClassInfo(thisClass);
         superClass = in.readUnsignedShort();
-        n = in.readUnsignedShort();
+        int n = in.readUnsignedShort();
         if (n == 0)
             interfaces = null;
         else {
             interfaces = new int[n];
-            for (i = 0; i < n; ++i)
+            for (int i = 0; i < n; ++i)
                 interfaces[i] = in.readUnsignedShort();
         }
+    }
 
-        ConstPool cp = constPool;
-        n = in.readUnsignedShort();
-        fields = new ArrayList<FieldInfo>();
-        for (i = 0; i < n; ++i)
-            addField2(new FieldInfo(cp, in));
+    /* Copies field_info or method_info structures without decoding them.
+     */
+    private static void copyMembers(DataInputStream in, DataOutputStream out)
+        throws IOException
+    {
+        int n = in.readUnsignedShort();
+        out.writeShort(n);
+        for (int i = 0; i < n; ++i) {
+            out.writeShort(in.readUnsignedShort());     // access_flags
+            out.writeShort(in.readUnsignedShort());     // name_index
+            out.writeShort(in.readUnsignedShort());     // descriptor_index
+            copyAttributes(in, out);
+        }
+    }
 
-        n = in.readUnsignedShort();
-        methods = new ArrayList<MethodInfo>();
-        for (i = 0; i < n; ++i)
-            addMethod2(new MethodInfo(cp, in));
+    private static void copyAttributes(DataInputStream in, DataOutputStream out)
+        throws IOException
+    {
+        int n = in.readUnsignedShort();
+        out.writeShort(n);
+        for (int i = 0; i < n; ++i) {
+            out.writeShort(in.readUnsignedShort());     // attribute_name_index
+            int len = in.readInt();
+            if (len < 0)
+                throw new IOException("bad attribute length: " + len);
+
+            byte[] info = new byte[len];
+            in.readFully(info);
+            out.writeInt(len);
+            out.write(info);
+        }
+    }
 
-        attributes = new ArrayList<AttributeInfo>();
-        n = in.readUnsignedShort();
-        for (i = 0; i < n; ++i)
-            addAttribute(AttributeInfo.read(cp, in));
+    private static final int FIELDS = 0, METHODS = 1, ATTRIBUTES = 2;
 
-        thisclassname = constPool.getClassInfo(thisClass);
+    private ArrayList<FieldInfo> fields() {
+        if (fields == null)
+            decodeLazily(FIELDS);
+
+        return fields;
+    }
+
+    private ArrayList<MethodInfo> methods() {
+        if (methods == null)
+            decodeLazily(METHODS);
+
+        return methods;
+    }
+
+    private ArrayList<AttributeInfo> attributes() {
+        if (attributes == null)
+            decodeLazily(ATTRIBUTES);
+
+        return attributes;
+    }
+
+    /* Decodes the fields, the methods, or the attributes of a class file
+     * read lazily.  lazyBytes is released when all of them are decoded.
+     */
+    private synchronized void decodeLazily(int part) {
+        byte[] bytes = lazyBytes;
+        if (bytes == null)
+            return;     // another thread has decoded all.
+
+        ConstPool cp = lazyConstPool;
+        try {
+            if (part == FIELDS && fields == null) {
+                DataInputStream in = lazyInput(bytes, fieldsOffset);
+                int n = in.readUnsignedShort();
+                ArrayList<FieldInfo> list = new ArrayList<FieldInfo>(n);
+                for (int i = 0; i < n; ++i)
+                    list.add(new FieldInfo(cp, in));
+
+                fields = list;
+            }
+            else if (part == METHODS && methods == null) {
+                DataInputStream in = lazyInput(bytes, methodsOffset);
+                int n = in.readUnsignedShort();
+                ArrayList<MethodInfo> list = new ArrayList<MethodInfo>(n);
+                for (int i = 0; i < n; ++i)
+                    list.add(new MethodInfo(cp, in));
+
+                methods = list;
+            }
+            else if (part == ATTRIBUTES && attributes == null) {
+                DataInputStream in = lazyInput(bytes, attributesOffset);
+                int n = in.readUnsignedShort();
+                ArrayList<AttributeInfo> list = new ArrayList<AttributeInfo>(n);
+                for (int i = 0; i < n; ++i) {
+                    AttributeInfo info = AttributeInfo.read(cp, in);
+                    AttributeInfo.remove(list, info.getName());
+                    list.add(info);
+                }
+
+                attributes = list;
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("broken class file: " + thisclassname, e);
+        }
+
+        if (fields != null && methods != null && attributes != null) {
+            lazyBytes = null;
+            lazyConstPool = null;
+        }
+    }
+
+    private static DataInputStream lazyInput(byte[] bytes, int offset) {
+        return new DataInputStream(new ByteArrayInputStream(bytes, offset,
+                                                            bytes.length - offset));
     }
 
     /**
@@ -826,7 +993,7 @@ public final class ClassFile {
         for (i = 0; i < n; ++i)
             out.writeShort(interfaces[i]);
 
-        ArrayList<FieldInfo> f = fields;
+        ArrayList<FieldInfo> f = fields();
         n = f.size();
         out.writeShort(n);
         for (i = 0; i < n; ++i) {
@@ -834,7 +1001,7 @@ public final class ClassFile {
             finfo.write(out);
         }
 
-        ArrayList<MethodInfo> m = methods;
+        ArrayList<MethodInfo> m = methods();
         n = m.size();
         out.writeShort(n);
         for (i = 0; i < n; ++i) {
@@ -842,8 +1009,8 @@ public final class ClassFile {
             minfo.write(out);
         }
 
-        out.writeShort(attributes.size());
-        AttributeInfo.writeAll(attributes, out);
+        out.writeShort(attributes().size());
+        AttributeInfo.writeAll(attributes(), out);
     }
 
     /**
@@ -390,6 +390,14 @@ public class Type {
     }
 
     private static CtClass findCommonSuperClass(CtClass one, CtClass two) throws NotFoundException {
+        ClassPool pool = one.getClassPool();
+        if (pool.get(one.getName()) == one && pool.get(two.getName()) == two) {
+            // ask the hierarchy index instead of walking through CtClasses.
+            String name = pool.getClassHierarchy()
+                              .getCommonSuperclass(one.getName(), two.getName());
+            return pool.get(name);
+        }
+
         CtClass deep = one;
         CtClass shallow = two;
         CtClass backupShallow = shallow;
@@ -0,0 +1,186 @@
+/*
+ * Javassist, a Java-bytecode translator toolkit.
+ * Copyright (C) 1999- Shigeru Chiba. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License Version
+ * 1.1 (the "License"); you may not use this file except in compliance with
+ * the License.  Alternatively, the contents of this file may be used under
+ * the terms of the GNU Lesser General Public License Version 2.1 or later,
+ * or the Apache License Version 2.0.
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ * for the specific language governing rights and limitations under the
+ * License.
+ */
+
+package javassist.util.proxy;
+
+import java.util.ArrayList;
+
+import javassist.CannotCompileException;
+import javassist.bytecode.ClassFile;
+
+/**
+ * Collects proxy classes from several <code>ProxyFactory</code> objects
+ * and loads all of them at once.
+ *
+ * <p>Every proxy class generated by <code>ProxyFactory.createClass()</code>
+ * is loaded separately.  A batch instead hands all the class files to a
+ * {@link Loader} in one call, so that a platform which needs a class loader
+ * per translated unit (for example, a DEX file on Android) creates only one.
+ *
+ * <ul><pre>
+ * ProxyBatch batch = new ProxyBatch(loader);
+ * int a = batch.add(factoryA);
+ * int b = batch.add(factoryB);
+ * Class[] classes = batch.createClasses();
+ * // classes[a] and classes[b] are the proxy classes.
+ * </pre></ul>
+ *
+ * <p>The proxy cache of <code>ProxyFactory</code> is consulted when a factory
+ * is added and updated when the classes are created, unless caching is
+ * disabled for that factory.
+ *
+ * @see ProxyFactory
+ */
+public class ProxyBatch {
+    /**
+     * Loads the class files of a batch.
+     */
+    public static interface Loader {
+        /**
+         * Returns a class loader that can load all the given classes.
+         *
+         * @param classes       the proxy class files.
+         * @param parent        the class loader of the super classes
+         *                      and interfaces.
+         */
+        public ClassLoader load(ClassFile[] classes, ClassLoader parent)
+            throws CannotCompileException;
+    }
+
+    static class Entry {
+        final String key;
+        final ClassLoader loader;
+        final ClassFile classFile;
+        final byte[] signature;
+        final MethodHandler handler;
+        final boolean useCache;
+        final boolean useWriteReplace;
+        Class<?> proxyClass;
+
+        Entry(String key, ClassLoader loader, Class<?> proxyClass) {
+            this(key, loader, null, null, null, true, false);
+            this.proxyClass = proxyClass;
+        }
+
+        Entry(String key, ClassLoader loader, ClassFile classFile,
+              byte[] signature, MethodHandler handler,
+              boolean useCache, boolean useWriteReplace)
+        {
+            this.key = key;
+            this.loader = loader;
+            this.classFile = classFile;
+            this.signature = signature;
+            this.handler = handler;
+            this.useCache = useCache;
+            this.useWriteReplace = useWriteReplace;
+            this.proxyClass = null;
+        }
+    }
+
+    private final Loader loader;
+    private final ClassLoader parent;
+    private final ArrayList<Entry> entries;
+
+    /**
+     * Constructs a batch.  The parent class loader of the loaded
+     * classes is the one that the first added factory would use.
+     */
+    public ProxyBatch(Loader loader) {
+        this(loader, null);
+    }
+
+    /**
+     * Constructs a batch.
+     *
+     * @param parent        the parent class loader of the loaded classes.
+     *                      It must see the super classes and interfaces
+     *                      of all the proxy classes.
+     */
+    public ProxyBatch(Loader loader, ClassLoader parent) {
+        if (loader == null)
+            throw new NullPointerException("loader");
+
+        this.loader = loader;
+        this.parent = parent;
+        this.entries = new ArrayList<Entry>();
+    }
+
+    /**
+     * Adds a proxy class generated with the current settings
+     * and filter of the factory.
+     *
+     * @return the index of the class in the array returned by
+     *          <code>createClasses()</code>.
+     */
+    public int add(ProxyFactory factory) {
+        Entry e = factory.makeBatchEntry();
+        if (e.classFile != null && e.useCache)
+            for (Entry f: entries)
+                if (f.useCache && f.loader == e.loader && f.key.equals(e.key)) {
+                    e = f;
+                    break;
+                }
+
+        entries.add(e);
+        return entries.size() - 1;
+    }
+
+    /**
+     * Returns the number of proxy classes added so far.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads all the proxy classes added so far and empties this batch.
+     *
+     * @return the proxy classes in the order of <code>add()</code>.
+     */
+    public Class<?>[] createClasses() {
+        ArrayList<Entry> pending = new ArrayList<Entry>();
+        ArrayList<ClassFile> files = new ArrayList<ClassFile>();
+        for (Entry e: entries)
+            if (e.proxyClass == null && !pending.contains(e)) {
+                pending.add(e);
+                files.add(e.classFile);
+            }
+
+        if (pending.size() > 0) {
+            ClassLoader p = parent != null ? parent : pending.get(0).loader;
+            try {
+                ClassLoader cl = loader.load(files.toArray(new ClassFile[files.size()]), p);
+                for (Entry e: pending) {
+                    e.proxyClass = cl.loadClass(e.classFile.getName());
+                    ProxyFactory.installBatchClass(e, e.proxyClass);
+                }
+            }
+            catch (CannotCompileException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            catch (ClassNotFoundException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        Class<?>[] result = new Class<?>[entries.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = entries.get(i).proxyClass;
+
+        entries.clear();
+        return result;
+    }
+}
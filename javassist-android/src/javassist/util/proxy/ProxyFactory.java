@@ -516,7 +516,69 @@ public class ProxyFactory {
 
     }
 
+    /**
+     * Generates a proxy class file with the current filter for
+     * {@link ProxyBatch}.  If a proxy class for the current settings is
+     * found in the cache, the returned entry holds it and no class file
+     * is generated.
+     */
+    ProxyBatch.Entry makeBatchEntry() {
+        if (signature == null)
+            computeSignature(methodFilter);
+
+        ClassLoader cl = getClassLoader();
+        String key = getKey(superClass, interfaces, signature, factoryWriteReplace);
+        if (factoryUseCache)
+            synchronized (proxyCache) {
+                HashMap<String, ProxyDetails> cacheForTheLoader = proxyCache.get(cl);
+                ProxyDetails details = cacheForTheLoader == null ? null
+                                       : cacheForTheLoader.get(key);
+                Class<?> c = details == null ? null : details.proxyClass.get();
+                if (c != null)
+                    return new ProxyBatch.Entry(key, cl, c);
+            }
+
+        allocateClassName();
+        try {
+            ClassFile cf = make();
+            if (writeDirectory != null)
+                FactoryHelper.writeFile(cf, writeDirectory);
+
+            return new ProxyBatch.Entry(key, cl, cf, signature,
+                                        factoryUseCache ? null : handler,
+                                        factoryUseCache, factoryWriteReplace);
+        }
+        catch (CannotCompileException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Initializes a proxy class loaded by {@link ProxyBatch} in the same way
+     * as <code>createClass()</code> does, and records it in the cache.
+     */
+    static void installBatchClass(ProxyBatch.Entry e, Class<?> clazz) {
+        setField(clazz, FILTER_SIGNATURE_FIELD, e.signature);
+        if (e.useCache)
+            synchronized (proxyCache) {
+                HashMap<String, ProxyDetails> cacheForTheLoader = proxyCache.get(e.loader);
+                if (cacheForTheLoader == null) {
+                    cacheForTheLoader = new HashMap<String, ProxyDetails>();
+                    proxyCache.put(e.loader, cacheForTheLoader);
+                }
+
+                cacheForTheLoader.put(e.key, new ProxyDetails(e.signature, clazz,
+                                                              e.useWriteReplace));
+            }
+        else
+            setField(clazz, DEFAULT_INTERCEPTOR, e.handler);
+    }
+
     private void setField(String fieldName, Object value) {
+        setField(thisClass, fieldName, value);
+    }
+
+    private static void setField(Class<?> thisClass, String fieldName, Object value) {
         if (thisClass != null && value != null)
             try {
                 Field f = thisClass.getField(fieldName);